@@ -0,0 +1,441 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A simple commandline utility for timing parts of query evaluation.
+ *  Run it to see a simple usage message.  The benchmarks are plain
+ *  timing loops with a warm-up phase, so numbers are only comparable
+ *  between runs on the same machine.
+ */
+public class Benchmark {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String USAGE =
+            "Usage:  java Benchmark BENCHMARK [options]\n\n" +
+            "where BENCHMARK is one of\n" +
+            "    -advance [RARE_DF COMMON_DF NUM_DOCS]\n" +
+            "\t\t\tintersect a rare and a common synthetic inverted\n" +
+            "\t\t\tlist with linear and galloping docid advance\n" +
+            "    -scoring PARAMETER_FILE\n" +
+            "\t\t\tevaluate the queries in a parameter file with\n" +
+            "\t\t\tgetScore and with compiled scorers (QryScorer)\n";
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int TIMED_ROUNDS = 20;
+
+    //  The -advance rounds take well under a millisecond, so there are
+    //  more of them.
+
+    private static final int ADVANCE_WARMUP_ROUNDS = 200;
+    private static final int ADVANCE_TIMED_ROUNDS = 101;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param args The benchmark name and its options.
+     * @throws Exception Error running the benchmark.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            System.err.print(USAGE);
+            System.exit(1);
+        }
+
+        if (args[0].equals("-advance")) {
+            int rareDf = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+            int commonDf = (args.length > 2) ? Integer.parseInt(args[2]) : 2000000;
+            int numDocs = (args.length > 3) ? Integer.parseInt(args[3]) : 5000000;
+            benchmarkAdvance(rareDf, commonDf, numDocs);
+        } else if (args[0].equals("-scoring") && (args.length > 1)) {
+            benchmarkScoring(args[1]);
+        } else {
+            System.err.print(USAGE);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Time #AND (rare common) style intersections.  The same pair of
+     * inverted lists is intersected by a loop that advances one
+     * posting at a time (the old QryIop behavior), by a loop that uses
+     * InvList.findDocid, and by QrySopAnd query operators whose
+     * arguments advance one posting at a time or with findDocid.
+     *
+     * @param rareDf   Document frequency of the rare list.
+     * @param commonDf Document frequency of the common list.
+     * @param numDocs  The size of the docid space.
+     */
+    static void benchmarkAdvance(int rareDf, int commonDf, int numDocs) throws IOException {
+
+        Random random = new Random(1);
+        InvList rare = syntheticInvList(random, rareDf, numDocs);
+        InvList common = syntheticInvList(random, commonDf, numDocs);
+
+        System.out.println("rare df: " + rare.df + ", common df: " + common.df +
+                ", docid space: " + numDocs);
+
+        long matches = intersectLinear(rare, common);
+
+        if ((matches != intersectGalloping(rare, common)) ||
+            (matches != intersectOperator(new LinearQryIop(rare), new LinearQryIop(common))) ||
+            (matches != intersectOperator(new FixedQryIop(rare), new FixedQryIop(common)))) {
+            throw new IllegalStateException("The intersections disagree.");
+        }
+
+        System.out.println("matches: " + matches);
+
+        double linear = time(new Timed() {
+            public long run() { return intersectLinear(rare, common); }
+        });
+        double galloping = time(new Timed() {
+            public long run() { return intersectGalloping(rare, common); }
+        });
+        double linearOperator = time(new Timed() {
+            public long run() throws IOException {
+                return intersectOperator(new LinearQryIop(rare), new LinearQryIop(common));
+            }
+        });
+        double gallopingOperator = time(new Timed() {
+            public long run() throws IOException {
+                return intersectOperator(new FixedQryIop(rare), new FixedQryIop(common));
+            }
+        });
+
+        System.out.printf("linear advance:           %10.3f ms/query%n", linear);
+        System.out.printf("galloping advance:        %10.3f ms/query%n", galloping);
+        System.out.printf("#AND, linear advance:     %10.3f ms/query%n", linearOperator);
+        System.out.printf("#AND, galloping advance:  %10.3f ms/query%n", gallopingOperator);
+        System.out.printf("speedup (linear / galloping):  loops %.1fx, #AND %.1fx%n",
+                linear / galloping, linearOperator / gallopingOperator);
+    }
+
+    /**
+     * Time the evaluation of the queries in a parameter file when
+     * documents are scored by QrySop.getScore, which dispatches on the
+     * retrieval model for every document, and by compiled scorers.
+     * Parsing and initialization (e.g., reading inverted lists) are
+     * not timed.
+     *
+     * @param parameterFile A QryEval parameter file.
+     */
+    static void benchmarkScoring(String parameterFile) throws IOException {
+
+        Map<String, String> parameters = QryEval.readParameterFile(parameterFile);
+        Idx.open(parameters.get("indexPath"));
+        RetrievalModel model = QryEval.initializeRetrievalModel(parameters);
+        int k = parameters.containsKey("trecEvalOutputLength") ?
+                Integer.parseInt(parameters.get("trecEvalOutputLength")) : 100;
+        List<String> queries = new ArrayList<>();
+
+        try (BufferedReader input = new BufferedReader(new FileReader(parameters.get("queryFilePath")))) {
+            for (String line = input.readLine(); line != null; line = input.readLine()) {
+                int colon = line.indexOf(':');
+
+                if (colon >= 0) {
+                    queries.add(model.defaultQrySopName() + "(" + line.substring(colon + 1).trim() + ")");
+                }
+            }
+        }
+
+        System.out.println("queries: " + queries.size() + ", model: " +
+                model.getClass().getName() + ", k: " + k);
+
+        //  Both ways of scoring must produce the same rankings.
+
+        for (String qString : queries) {
+            ScoreList dispatched = scoreQuery(qString, model, k, false);
+            ScoreList compiled = scoreQuery(qString, model, k, true);
+
+            for (int i = 0; i < dispatched.size(); i++) {
+                if ((dispatched.getDocid(i) != compiled.getDocid(i)) ||
+                    (dispatched.getDocidScore(i) != compiled.getDocidScore(i))) {
+                    throw new IllegalStateException("The scorers disagree on " + qString);
+                }
+            }
+        }
+
+        double dispatch = timeScoring(queries, model, k, false);
+        double compiled = timeScoring(queries, model, k, true);
+
+        System.out.printf("getScore dispatch:  %10.3f ms/query%n", dispatch);
+        System.out.printf("compiled scorers:   %10.3f ms/query%n", compiled);
+        System.out.printf("speedup (dispatch / compiled): %.2fx%n", dispatch / compiled);
+    }
+
+    /**
+     * Evaluate one query with or without compiled scorers.
+     */
+    private static ScoreList scoreQuery(String qString, RetrievalModel model, int k,
+                                        boolean compiled) throws IOException {
+
+        Qry q = QryParser.getQuery(qString);
+        TopKCollector results = new TopKCollector(k);
+
+        if ((q != null) && (q.args.size() > 0)) {
+            q.initialize(model);
+            QryScorer.setEnabled(compiled);
+            QryEval.evaluate(q, model, results, 0, Integer.MAX_VALUE);
+        }
+
+        return results.getScoreList();
+    }
+
+    /**
+     * Evaluate the queries several times and report the average time
+     * per query of the timed rounds, in milliseconds.  Only the
+     * document-at-a-time loop is timed.
+     */
+    private static double timeScoring(List<String> queries, RetrievalModel model, int k,
+                                      boolean compiled) throws IOException {
+
+        QryScorer.setEnabled(compiled);
+        long elapsed = 0;
+        long checksum = 0;
+
+        for (int round = 0; round < WARMUP_ROUNDS + TIMED_ROUNDS; round++) {
+            for (String qString : queries) {
+                Qry q = QryParser.getQuery(qString);
+
+                if ((q == null) || (q.args.size() == 0)) {
+                    continue;
+                }
+
+                q.initialize(model);
+                TopKCollector results = new TopKCollector(k);
+                long start = System.nanoTime();
+
+                QryEval.evaluate(q, model, results, 0, Integer.MAX_VALUE);
+
+                if (round >= WARMUP_ROUNDS) {
+                    elapsed += System.nanoTime() - start;
+                }
+
+                checksum += results.size();
+            }
+        }
+
+        if (checksum < 0) {            // Keep the JIT from discarding the work
+            System.out.println(checksum);
+        }
+
+        return elapsed / 1e6 / TIMED_ROUNDS / Math.max(1, queries.size());
+    }
+
+    /**
+     * Build an inverted list with df random docids and one location each.
+     */
+    private static InvList syntheticInvList(Random random, int df, int numDocs)
+            throws IOException {
+
+        BitSet docs = new BitSet(numDocs);
+        int n = Math.min(df, numDocs);
+
+        //  BitSet.cardinality counts every word, so keep a running count.
+
+        for (int count = 0; count < n; ) {
+            int d = random.nextInt(numDocs);
+
+            if (!docs.get(d)) {
+                docs.set(d);
+                count++;
+            }
+        }
+
+        InvList list = new InvList("body");
+        List<Integer> positions = Collections.singletonList(0);
+
+        for (int d = docs.nextSetBit(0); d >= 0; d = docs.nextSetBit(d + 1)) {
+            list.appendPosting(d, positions);
+        }
+
+        return list;
+    }
+
+    /**
+     * Intersect two lists, advancing one posting at a time.
+     */
+    private static long intersectLinear(InvList a, InvList b) {
+        long matches = 0;
+        int j = 0;
+
+        for (int i = 0; i < a.df; i++) {
+            int docid = a.getDocid(i);
+
+            while ((j < b.df) && (b.getDocid(j) < docid)) {
+                j++;
+            }
+
+            if (j == b.df) {
+                break;
+            }
+
+            if (b.getDocid(j) == docid) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Intersect two lists, advancing with InvList.findDocid.
+     */
+    private static long intersectGalloping(InvList a, InvList b) {
+        long matches = 0;
+        int j = 0;
+
+        for (int i = 0; i < a.df; i++) {
+            int docid = a.getDocid(i);
+
+            j = b.findDocid(j, docid);
+
+            if (j == b.df) {
+                break;
+            }
+
+            if (b.getDocid(j) == docid) {
+                matches++;
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Intersect two lists with the #AND query operator.  The operator
+     * and its implied #SCORE arguments add a few virtual calls and a
+     * second advance of the rare list for each of its postings, which
+     * the loops don't have.
+     */
+    private static long intersectOperator(QryIop a, QryIop b) throws IOException {
+
+        RetrievalModel model = new RetrievalModelUnrankedBoolean();
+        Qry q = new QrySopAnd();
+
+        q.setDisplayName("#AND");
+        q.appendArg(a);
+        q.appendArg(b);
+        q.initialize(model);
+
+        long matches = 0;
+
+        while (q.docIteratorHasMatch(model)) {
+            int docid = q.docIteratorGetMatch();
+            matches++;
+            q.docIteratorAdvancePast(docid);
+        }
+
+        return matches;
+    }
+
+    /**
+     * Run a benchmark several times and report the median time of the
+     * timed rounds, in milliseconds.  The rounds are short, so a mean
+     * would be dominated by the occasional garbage collection or JIT
+     * recompilation.
+     */
+    private static double time(Timed t) throws IOException {
+
+        long checksum = 0;
+
+        for (int i = 0; i < ADVANCE_WARMUP_ROUNDS; i++) {
+            checksum += t.run();
+        }
+
+        long[] elapsed = new long[ADVANCE_TIMED_ROUNDS];
+
+        for (int i = 0; i < elapsed.length; i++) {
+            long start = System.nanoTime();
+            checksum += t.run();
+            elapsed[i] = System.nanoTime() - start;
+        }
+
+        if (checksum < 0) {            // Keep the JIT from discarding the work
+            System.out.println(checksum);
+        }
+
+        Arrays.sort(elapsed);
+        return elapsed[elapsed.length / 2] / 1e6;
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * A unit of work to time.  It returns a value so that the work
+     * can't be optimized away.
+     */
+    private interface Timed {
+        long run() throws IOException;
+    }
+
+    /**
+     * A query operator over an inverted list that already exists.
+     */
+    private static class FixedQryIop extends QryIop {
+
+        private InvList list;
+
+        FixedQryIop(InvList list) {
+            this.list = list;
+            this.field = list.field;
+        }
+
+        protected void evaluate() {
+            this.invertedList = this.list;
+        }
+    }
+
+    /**
+     * A query operator over an inverted list that already exists,
+     * whose docIterator advances one posting at a time, as QryIop did
+     * before it used InvList.findDocid.  It is the operator-level
+     * baseline for FixedQryIop.
+     */
+    private static class LinearQryIop extends FixedQryIop {
+
+        private int index = 0;
+
+        LinearQryIop(InvList list) {
+            super(list);
+        }
+
+        @Override
+        public void initialize(RetrievalModel r) throws IOException {
+            super.initialize(r);
+            this.index = 0;
+        }
+
+        @Override
+        public boolean docIteratorHasMatch(RetrievalModel r) {
+            return (this.index < this.invertedList.df);
+        }
+
+        @Override
+        public int docIteratorGetMatch() {
+            return this.invertedList.getDocid(this.index);
+        }
+
+        @Override
+        public void docIteratorAdvancePast(int docid) {
+            while ((this.index < this.invertedList.df) &&
+                   (this.invertedList.getDocid(this.index) <= docid)) {
+                this.index++;
+            }
+        }
+
+        @Override
+        public void docIteratorAdvanceTo(int docid) {
+            while ((this.index < this.invertedList.df) &&
+                   (this.invertedList.getDocid(this.index) < docid)) {
+                this.index++;
+            }
+        }
+
+        @Override
+        public void docIteratorFinish() {
+            this.index = this.invertedList.df;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.*;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  Corpus-level statistics for one field of an index.  They are the
+ *  same for every query and every document, so Idx computes them once
+ *  per field when the index is opened instead of asking Lucene for
+ *  aggregate statistics while documents are scored.
+ */
+public class CollectionStats {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     *  The field that the statistics describe.
+     */
+    public final String field;
+
+    /**
+     *  The number of documents in the corpus.
+     */
+    public final long numDocs;
+
+    /**
+     *  The number of documents that contain the field.
+     */
+    public final long docCount;
+
+    /**
+     *  The total number of term occurrences in all instances of the
+     *  field (the collection length).
+     */
+    public final long sumOfFieldLengths;
+
+    /**
+     *  The average length of the field in documents that contain it.
+     */
+    public final double avgFieldLength;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Read the statistics for a field from an index.
+     *  @param reader The index.
+     *  @param field The field name.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public CollectionStats(IndexReader reader, String field) throws IOException {
+        this.field = field;
+        this.numDocs = reader.numDocs();
+        this.docCount = reader.getDocCount(field);
+        this.sumOfFieldLengths = reader.getSumTotalTermFreq(field);
+        this.avgFieldLength = 1.0 * this.sumOfFieldLengths / (double) this.docCount;
+    }
+
+    @Override
+    public String toString() {
+        return field + ": numDocs=" + numDocs + ", docCount=" + docCount +
+                ", sumOfFieldLengths=" + sumOfFieldLengths;
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+/**
+ *  A memory-mapped table that maps internal docids to external docids
+ *  and back without reading Lucene stored fields.  It is a sidecar
+ *  file that is built from an index once and reused by later runs.
+ *  <p>
+ *  File layout (all values big-endian):
+ *  </p>
+ *  <pre>
+ *    int     magic
+ *    int     format version
+ *    long    index version (DirectoryReader.getVersion), or -1
+ *    int     maxDoc
+ *    int     tableSize (a power of 2)
+ *    int[]   offsets[maxDoc+1]:  external id i is bytes[offsets[i]..offsets[i+1])
+ *    int[]   table[tableSize]:   open-addressing hash table of internal docids
+ *                                keyed by external id; -1 is an empty slot
+ *    byte[]  bytes:              UTF-8 external ids, in internal docid order
+ *  </pre>
+ *  <p>
+ *  Both lookups are O(1) (expected, for the hash table).  Reads use
+ *  absolute buffer positions, so one map can be shared by threads.
+ *  The file must be smaller than 2 GB.
+ *  </p>
+ */
+public class DocidMap {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final int MAGIC = 0x44494d31;        // "DIM1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int EMPTY_SLOT = -1;
+
+    private static final String externalIdField = "externalId";
+
+    private final ByteBuffer buffer;
+    private final int maxDoc;
+    private final int tableMask;
+    private final int offsetsStart;
+    private final int tableStart;
+    private final int bytesStart;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Open the docid map for an index, building it first if the file
+     *  doesn't exist or was built from a different version of the index.
+     *  @param reader The index.
+     *  @param path The docid map file.
+     *  @return The docid map.
+     *  @throws IOException Error accessing the index or the file.
+     */
+    public static DocidMap open(IndexReader reader, String path) throws IOException {
+
+        DocidMap map = null;
+        File file = new File(path);
+
+        if (file.exists()) {
+            map = new DocidMap(path);
+
+            if (!map.matches(reader)) {
+                System.out.println("Docid map " + path + " is stale.  Rebuilding it.");
+                map = null;
+            }
+        }
+
+        if (map == null) {
+            build(reader, path);
+            map = new DocidMap(path);
+        }
+
+        return map;
+    }
+
+    /**
+     *  Map an existing docid map file.
+     *  @param path The docid map file.
+     *  @throws IOException Error reading the file.
+     */
+    private DocidMap(String path) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Docid map " + path + " is larger than 2 GB.");
+            }
+
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if ((this.buffer.getInt(0) != MAGIC) || (this.buffer.getInt(4) != VERSION)) {
+            throw new IOException(path + " is not a docid map.");
+        }
+
+        this.maxDoc = this.buffer.getInt(16);
+        this.tableMask = this.buffer.getInt(20) - 1;
+        this.offsetsStart = HEADER_SIZE;
+        this.tableStart = this.offsetsStart + 4 * (this.maxDoc + 1);
+        this.bytesStart = this.tableStart + 4 * (this.tableMask + 1);
+    }
+
+    /**
+     *  Write a docid map file for an index.
+     *  @param reader The index.
+     *  @param path The docid map file.
+     *  @throws IOException Error accessing the index or the file.
+     */
+    public static void build(IndexReader reader, String path) throws IOException {
+
+        int maxDoc = reader.maxDoc();
+        int tableSize = Integer.highestOneBit(Math.max(2, 2 * maxDoc) - 1) << 1;
+        int[] offsets = new int[maxDoc + 1];
+        int[] table = new int[tableSize];
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        Set<String> fields = Collections.singleton(externalIdField);
+        Arrays.fill(table, EMPTY_SLOT);
+
+        //  The external ids are streamed to a temporary file, because
+        //  the offsets and the hash table must precede them.  The map
+        //  is written to another temporary file and then moved over
+        //  path, so that a process that has the old map mapped, or a
+        //  crash while the map is written, never sees a partial file.
+
+        File ids = new File(path + ".ids.tmp");
+        File tmp = new File(path + ".tmp");
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(ids))) {
+            long length = 0;
+
+            for (int docid = 0; docid < maxDoc; docid++) {
+                offsets[docid] = (int) length;
+
+                if ((liveDocs != null) && !liveDocs.get(docid)) {
+                    continue;
+                }
+
+                Document d = reader.document(docid, fields);
+                String eid = d.get(externalIdField);
+
+                if (eid == null) {
+                    continue;
+                }
+
+                byte[] bytes = eid.getBytes(StandardCharsets.UTF_8);
+                out.write(bytes);
+                length += bytes.length;
+
+                if (HEADER_SIZE + 4L * (maxDoc + 1) + 4L * tableSize + length > Integer.MAX_VALUE) {
+                    throw new IOException("Docid map " + path + " would be larger than 2 GB.");
+                }
+
+                int slot = hash(eid) & (tableSize - 1);
+
+                while (table[slot] != EMPTY_SLOT) {
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+
+                table[slot] = docid;
+            }
+
+            offsets[maxDoc] = (int) length;
+        }
+
+        long indexVersion = (reader instanceof DirectoryReader) ?
+                ((DirectoryReader) reader).getVersion() : -1;
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+             InputStream in = new BufferedInputStream(new FileInputStream(ids))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(indexVersion);
+            out.writeInt(maxDoc);
+            out.writeInt(tableSize);
+
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+
+            for (int slot : table) {
+                out.writeInt(slot);
+            }
+
+            byte[] chunk = new byte[1 << 16];
+
+            for (int n = in.read(chunk); n > 0; n = in.read(chunk)) {
+                out.write(chunk, 0, n);
+            }
+        }
+
+        if (!ids.delete()) {
+            ids.deleteOnExit();
+        }
+
+        Files.move(tmp.toPath(), Paths.get(path),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     *  Get the external document id for an internal document id.
+     *  @param docid The internal document id.
+     *  @return The external document id, or null if the document
+     *  doesn't have one (e.g., it was deleted).
+     */
+    public String getExternalDocid(int docid) {
+
+        int start = this.buffer.getInt(this.offsetsStart + 4 * docid);
+        int end = this.buffer.getInt(this.offsetsStart + 4 * (docid + 1));
+
+        if (start == end) {
+            return null;
+        }
+
+        byte[] bytes = new byte[end - start];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = this.buffer.get(this.bytesStart + start + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     *  Get the internal document id for an external document id.
+     *  @param externalId The external document id.
+     *  @return The internal document id, or -1 if there is none.
+     */
+    public int getInternalDocid(String externalId) {
+
+        byte[] bytes = externalId.getBytes(StandardCharsets.UTF_8);
+        int slot = hash(externalId) & this.tableMask;
+
+        while (true) {
+            int docid = this.buffer.getInt(this.tableStart + 4 * slot);
+
+            if (docid == EMPTY_SLOT) {
+                return -1;
+            }
+
+            if (this.externalIdEquals(docid, bytes)) {
+                return docid;
+            }
+
+            slot = (slot + 1) & this.tableMask;
+        }
+    }
+
+    /**
+     *  Compare the stored external id of a document to a UTF-8 string.
+     */
+    private boolean externalIdEquals(int docid, byte[] bytes) {
+
+        int start = this.buffer.getInt(this.offsetsStart + 4 * docid);
+        int end = this.buffer.getInt(this.offsetsStart + 4 * (docid + 1));
+
+        if (end - start != bytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (this.buffer.get(this.bytesStart + start + i) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *  Returns true if the map was built from this version of the index.
+     */
+    private boolean matches(IndexReader reader) {
+
+        long indexVersion = (reader instanceof DirectoryReader) ?
+                ((DirectoryReader) reader).getVersion() : -1;
+
+        return (this.maxDoc == reader.maxDoc()) &&
+                (this.buffer.getLong(8) == indexVersion);
+    }
+
+    /**
+     *  Hash an external id.  String.hashCode is specified by the
+     *  language, so the value is stable across JVMs; it is mixed
+     *  because the table index uses the low bits.
+     */
+    private static int hash(String s) {
+        int h = s.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
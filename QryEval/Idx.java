@@ -33,6 +33,54 @@ public class Idx {
 
   private static HashMap<String,IndexReader> openIndexReaders =
     new HashMap<String,IndexReader> ();
+
+  /**
+   *  Per-field collection statistics for each open index, and for the
+   *  current index.  They are computed when the index is opened.
+   */
+  private static HashMap<IndexReader,HashMap<String,CollectionStats>> openCollectionStats =
+    new HashMap<IndexReader,HashMap<String,CollectionStats>> ();
+  private static HashMap<String,CollectionStats> collectionStats = null;
+
+  /**
+   *  Optionally, the length of every field of every document is read
+   *  from the Lucene norms into an array indexed by internal docid
+   *  when the index is opened, so that getFieldLength is an array
+   *  read.  This uses 4 bytes per document per field.
+   */
+  private static boolean cacheFieldLengths = false;
+  private static HashMap<IndexReader,HashMap<String,int[]>> openFieldLengths =
+    new HashMap<IndexReader,HashMap<String,int[]>> ();
+  private static HashMap<String,int[]> fieldLengths = null;
+
+  /**
+   *  The docBase of each leaf of each open index, in leaf order, and
+   *  for the current index.  Used to find the leaf that contains an
+   *  internal docid with a binary search.
+   */
+  private static HashMap<IndexReader,int[]> openDocBases =
+    new HashMap<IndexReader,int[]> ();
+  private static int[] docBases = null;
+
+  /**
+   *  The norms iterator most recently used for each index, field, and
+   *  leaf.  Documents are usually scored in ascending docid order, so
+   *  an iterator can usually be advanced instead of being created
+   *  again.  Lucene iterators can't be shared, so each thread that
+   *  evaluates queries has its own.
+   */
+  private static final ThreadLocal<HashMap<IndexReader,HashMap<String,NumericDocValues[]>>>
+    normsIterators = ThreadLocal.withInitial (HashMap::new);
+
+  /**
+   *  Optional internal/external docid maps (see DocidMap) for each
+   *  open index, and for the current index.  Without a map, docids
+   *  are translated by reading Lucene stored fields and postings.
+   */
+  private static HashMap<IndexReader,DocidMap> openDocidMaps =
+    new HashMap<IndexReader,DocidMap> ();
+  private static DocidMap docidMap = null;
+
   private static String externalIdField = new String ("externalId");
 
   //  --------------- Methods ---------------------------------------
@@ -51,6 +99,32 @@ public class Idx {
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the collection statistics for the specified field of the
+   *  current index.
+   *  @param fieldName the field name
+   *  @return the collection statistics for the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static CollectionStats getCollectionStats (String fieldName)
+    throws IOException {
+
+    if (Idx.collectionStats == null) {
+      throw new IllegalStateException ("No index is open.");
+    }
+
+    CollectionStats stats = Idx.collectionStats.get (fieldName);
+
+    //  Fields that weren't indexed when the index was opened have no
+    //  cached statistics.  Lucene reports empty statistics for them.
+
+    if (stats == null) {
+      stats = new CollectionStats (Idx.INDEXREADER, fieldName);
+    }
+
+    return stats;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -59,7 +133,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return (int) Idx.getCollectionStats (fieldName).docCount;
   }
 
   /**
@@ -70,6 +144,11 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
+
+    if (Idx.docidMap != null) {
+      return Idx.docidMap.getExternalDocid (iid);
+    }
+
     Document d = Idx.INDEXREADER.document(iid);
     String eid = d.get(externalIdField);
     return eid;
@@ -85,10 +164,17 @@ public class Idx {
   public static long getFieldLength (String fieldName, int docid)
     throws IOException {
 
-    LeafReaderContext leafContext = getLeafReaderContext (Idx.INDEXREADER, docid);
-    int leafDocid = docid - leafContext.docBase;
-    LeafReader leafReader = leafContext.reader ();
-    NumericDocValues norms = leafReader.getNormValues (fieldName);
+    if (Idx.fieldLengths != null) {
+      int[] lengths = Idx.fieldLengths.get (fieldName);
+
+      if (lengths != null) {
+	return lengths[docid];
+      }
+    }
+
+    int leaf = ReaderUtil.subIndex (docid, Idx.docBases);
+    int leafDocid = docid - Idx.docBases[leaf];
+    NumericDocValues norms = getNormsIterator (fieldName, leaf, leafDocid);
     long fieldLength = 0;
 	    
     if (norms != null) {
@@ -100,6 +186,38 @@ public class Idx {
     return fieldLength;
   }
 
+  /**
+   *  Get a norms iterator for the specified field and leaf of the
+   *  current index that can be advanced to leafDocid.  The cached
+   *  iterator is reused unless it is already beyond leafDocid.
+   *  @param fieldName Name of field to access lengths.
+   *  @param leaf The index of the leaf in the current index.
+   *  @param leafDocid The docid within the leaf.
+   *  @return the norms iterator, or null if the leaf has no norms
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static NumericDocValues getNormsIterator (String fieldName, int leaf, int leafDocid)
+    throws IOException {
+
+    HashMap<String,NumericDocValues[]> indexIterators =
+      Idx.normsIterators.get ().computeIfAbsent (Idx.INDEXREADER, r -> new HashMap<> ());
+    NumericDocValues[] iterators = indexIterators.get (fieldName);
+
+    if (iterators == null) {
+      iterators = new NumericDocValues[Idx.docBases.length];
+      indexIterators.put (fieldName, iterators);
+    }
+
+    NumericDocValues norms = iterators[leaf];
+
+    if ((norms == null) || (norms.docID () > leafDocid)) {
+      norms = Idx.INDEXREADER.leaves ().get (leaf).reader ().getNormValues (fieldName);
+      iterators[leaf] = norms;
+    }
+
+    return norms;
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -111,6 +229,15 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
+    if (Idx.docidMap != null) {
+      int internalId = Idx.docidMap.getInternalDocid (externalId);
+
+      if (internalId < 0)
+	throw new Exception ("External id " + externalId + " not found.");
+
+      return internalId;
+    }
+
     LeafReaderContext leafContext =
       getLeafReaderContext (Idx.INDEXREADER, externalId);
 
@@ -153,28 +280,6 @@ public class Idx {
     return null;
   }
 
-  /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
-   *  @param docid An internal document id
-   *  @return the LeafReaderContext that contains the document, or null
-   */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, long docid) {
-
-    LeafReader leafReader = null;
-
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      leafReader = leafContext.reader();
-      int minDocid = leafContext.docBase;
-      int maxDocid = leafContext.docBase + leafReader.numDocs();
-      if ((docid >= minDocid) && (docid < maxDocid)) {
-	return leafContext;
-      };
-    };
-
-    return null;
-  }
-
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
@@ -194,7 +299,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.getCollectionStats (fieldName).sumOfFieldLengths;
   }
 
 
@@ -237,15 +342,39 @@ public class Idx {
 
     openIndexReaders.put (indexPath, indexReader);
 
+    //  Corpus statistics don't change while the index is open, so
+    //  compute them once for each indexed field.
+
+    HashMap<String,CollectionStats> stats = new HashMap<String,CollectionStats> ();
+
+    for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos (indexReader)) {
+      if (fieldInfo.getIndexOptions () != IndexOptions.NONE) {
+        stats.put (fieldInfo.name,
+                   new CollectionStats (indexReader, fieldInfo.name));
+      }
+    }
+
+    openCollectionStats.put (indexReader, stats);
+    openDocBases.put (indexReader, readDocBases (indexReader));
+
+    if (Idx.cacheFieldLengths) {
+      openFieldLengths.put (indexReader, readFieldLengths (indexReader));
+    }
+
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
+      Idx.collectionStats = stats;
+      Idx.fieldLengths = openFieldLengths.get (indexReader);
+      Idx.docBases = openDocBases.get (indexReader);
     }
   }
 
   /**
-   *  Change the current index to another open Lucene index.
+   *  Change the current index to another open Lucene index.  The
+   *  current index is shared by all threads, so it shouldn't be
+   *  changed while queries are being evaluated.
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
@@ -260,5 +389,93 @@ public class Idx {
     }
 
     Idx.INDEXREADER = indexReader;
+    Idx.collectionStats = openCollectionStats.get (indexReader);
+    Idx.fieldLengths = openFieldLengths.get (indexReader);
+    Idx.docBases = openDocBases.get (indexReader);
+    Idx.docidMap = openDocidMaps.get (indexReader);
+  }
+
+  /**
+   *  Use a docid map file to translate between internal and external
+   *  docids in the current index.  The file is built if it doesn't
+   *  exist or is out of date, which requires reading the external id
+   *  of every document once.
+   *  @param path The docid map file.
+   *  @throws IOException Error accessing the index or the file.
+   */
+  public static void useDocidMap (String path) throws IOException {
+    DocidMap map = DocidMap.open (Idx.INDEXREADER, path);
+    openDocidMaps.put (Idx.INDEXREADER, map);
+    Idx.docidMap = map;
+  }
+
+  /**
+   *  Get the docBase of each leaf of an index, in leaf order.
+   *  @param reader The index.
+   *  @return the docBase of each leaf.
+   */
+  private static int[] readDocBases (IndexReader reader) {
+
+    //  Leaves cover consecutive docid ranges of maxDoc (not numDocs,
+    //  which excludes deletions) documents each.
+
+    List<LeafReaderContext> leaves = reader.leaves ();
+    int[] bases = new int[leaves.size ()];
+
+    for (int i = 0; i < bases.length; i++) {
+      bases[i] = leaves.get (i).docBase;
+    }
+
+    return bases;
+  }
+
+  /**
+   *  Read the lengths of every field that has norms into arrays
+   *  indexed by internal docid.  Documents that don't contain a
+   *  field have length 0.
+   *  @param reader The index.
+   *  @return A map from field name to field lengths.
+   *  @throws IOException Error accessing the index.
+   */
+  private static HashMap<String,int[]> readFieldLengths (IndexReader reader)
+    throws IOException {
+
+    HashMap<String,int[]> lengths = new HashMap<String,int[]> ();
+
+    for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos (reader)) {
+      if (! fieldInfo.hasNorms ()) {
+	continue;
+      }
+
+      int[] fieldLengths = new int[reader.maxDoc ()];
+
+      for (LeafReaderContext leafContext : reader.leaves ()) {
+	NumericDocValues norms =
+	  leafContext.reader ().getNormValues (fieldInfo.name);
+
+	if (norms == null) {
+	  continue;
+	}
+
+	for (int d = norms.nextDoc ();
+	     d != DocIdSetIterator.NO_MORE_DOCS;
+	     d = norms.nextDoc ()) {
+	  fieldLengths[leafContext.docBase + d] = (int) norms.longValue ();
+	}
+      }
+
+      lengths.put (fieldInfo.name, fieldLengths);
+    }
+
+    return lengths;
+  }
+
+  /**
+   *  Indicate whether indexes that are opened later should cache
+   *  their field lengths in memory.
+   *  @param b True if field lengths should be cached.
+   */
+  public static void setCacheFieldLengths (boolean b) {
+    Idx.cacheFieldLengths = b;
   }
 }
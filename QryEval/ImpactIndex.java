@@ -0,0 +1,572 @@
+/**
+ * Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A memory-mapped, impact-ordered sidecar index for BM25 and one
+ *  field.  Each posting stores a quantized BM25 term score (its
+ *  impact) for fixed k_1 and b, and each term's postings are grouped
+ *  into segments of equal impact, highest impact first.  Flat BM25
+ *  #SUM queries can then be evaluated score-at-a-time:  the segments
+ *  of all query terms are read in impact order, and each posting adds
+ *  its impact to an integer accumulator.  Retrieval may stop after a
+ *  budget of postings, trading accuracy for latency; the postings
+ *  that are skipped are the ones that contribute the least.
+ *  <p>
+ *  Run it to build a sidecar file for an index.  File layout (all
+ *  values big-endian):
+ *  </p>
+ *  <pre>
+ *    int     magic
+ *    int     format version
+ *    long    index version (DirectoryReader.getVersion), or -1
+ *    double  k_1
+ *    double  b
+ *    double  scale:  the BM25 score of one unit of impact
+ *    int     maxDoc
+ *    int     numTerms
+ *    int     dictionary start
+ *    string  field
+ *    postings, for each term:
+ *      int     numSegments
+ *      for each segment:  int impact, int count, int[count] docids
+ *    dictionary, for each term:  string term, int postings start
+ *  </pre>
+ *  <p>
+ *  Postings whose BM25 score is 0 (e.g., because idf is clamped to 0)
+ *  are kept in a final segment of impact 0, so that a query matches
+ *  the same documents as exact BM25.
+ *  </p>
+ *  <p>
+ *  A string is a short byte length followed by UTF-8 bytes.
+ *  </p>
+ *  <p>
+ *  The file must be smaller than 2 GB.  Reads use absolute buffer
+ *  positions, so one index can be shared by threads.
+ *  </p>
+ */
+public class ImpactIndex {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final int MAGIC = 0x494d5031;        // "IMP1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 52;
+
+    /**
+     *  The default number of bits in an impact.
+     */
+    private static final int DEFAULT_BITS = 8;
+
+    private static final String USAGE =
+            "Usage:  java ImpactIndex INDEX_PATH FIELD OUTPUT_PATH K_1 B [BITS]\n\n" +
+            "Writes an impact-ordered BM25 index for FIELD to OUTPUT_PATH.\n" +
+            "Impacts have BITS bits (default " + DEFAULT_BITS + ", at most 16).\n";
+
+    //  The impact index that queries use, if any, and the number of
+    //  postings that a query may read (0 is unlimited).
+
+    private static ImpactIndex current = null;
+    private static long postingsBudget = 0;
+
+    private final ByteBuffer buffer;
+    private final String field;
+    private final double k_1;
+    private final double b;
+    private final double scale;
+    private final int maxDoc;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    //  Each thread's accumulators, which are maxDoc long, and whether
+    //  each document has been added to them.  evaluate resets the
+    //  documents that it touched.
+
+    private final ThreadLocal<int[]> accumulators;
+    private final ThreadLocal<BitSet> matched;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param args The index path, field, output path, k_1, b, and bits.
+     * @throws Exception Error building the impact index.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 5) {
+            System.err.print(USAGE);
+            System.exit(1);
+        }
+
+        int bits = (args.length > 5) ? Integer.parseInt(args[5]) : DEFAULT_BITS;
+
+        if ((bits < 1) || (bits > 16)) {
+            throw new IllegalArgumentException("Impacts must have 1-16 bits.");
+        }
+
+        Idx.open(args[0]);
+        build(args[1], args[2], Double.parseDouble(args[3]), Double.parseDouble(args[4]), bits);
+    }
+
+    /**
+     *  Evaluate flat BM25 queries with an impact index.
+     *  @param path The impact index file.
+     *  @param model The retrieval model.  It must be BM25, with the
+     *  k_1 and b that the impact index was built with.
+     *  @param budget The number of postings that a query may read, or
+     *  0 for all of them.
+     *  @throws IOException Error reading the file.
+     */
+    public static void use(String path, RetrievalModel model, long budget) throws IOException {
+
+        ImpactIndex index = new ImpactIndex(path);
+
+        if (!(model instanceof RetrievalModelBM25)) {
+            throw new IllegalArgumentException("An impact index requires the BM25 retrieval model.");
+        }
+
+        RetrievalModelBM25 bm25 = (RetrievalModelBM25) model;
+
+        if ((bm25.getK_1() != index.k_1) || (bm25.getB() != index.b)) {
+            throw new IllegalArgumentException(
+                    "Impact index " + path + " was built with k_1=" + index.k_1 +
+                    " and b=" + index.b + ", but the model has k_1=" + bm25.getK_1() +
+                    " and b=" + bm25.getB() + ".");
+        }
+
+        long indexVersion = (Idx.INDEXREADER instanceof DirectoryReader) ?
+                ((DirectoryReader) Idx.INDEXREADER).getVersion() : -1;
+
+        if ((index.maxDoc != Idx.INDEXREADER.maxDoc()) ||
+            (index.buffer.getLong(8) != indexVersion)) {
+            throw new IllegalArgumentException("Impact index " + path + " was built from a different index.");
+        }
+
+        current = index;
+        postingsBudget = budget;
+    }
+
+    /**
+     *  Returns true if flat BM25 queries are evaluated with an impact index.
+     *  @return True if an impact index is in use.
+     */
+    public static boolean isEnabled() {
+        return (current != null);
+    }
+
+    /**
+     *  Get the number of postings that a query may read.
+     *  @return The budget, or 0 if it is unlimited.
+     */
+    public static long getPostingsBudget() {
+        return postingsBudget;
+    }
+
+    /**
+     *  Evaluate a query score-at-a-time, if it is a BM25 #SUM of terms
+     *  in the field of the impact index.  The query doesn't need to be
+     *  initialized.
+     *  @param q The query.
+     *  @param model The retrieval model.
+     *  @param k The number of results to keep.
+     *  @return The top k results, or null if the query isn't supported.
+     */
+    public static TopKCollector evaluate(Qry q, RetrievalModel model, int k) {
+
+        ImpactIndex index = current;
+
+        if ((index == null) || !(model instanceof RetrievalModelBM25) ||
+            !(q instanceof QrySopSum) || (q.args.size() == 0)) {
+            return null;
+        }
+
+        //  Find the postings of each term.
+
+        List<String> terms = new ArrayList<>();
+
+        for (Qry q_i : q.args) {
+            if (!(q_i instanceof QrySopScore) ||
+                !(q_i.args.get(0) instanceof QryIopTerm)) {
+                return null;
+            }
+
+            QryIopTerm term = (QryIopTerm) q_i.args.get(0);
+
+            if (!term.getField().equals(index.field)) {
+                return null;
+            }
+
+            terms.add(term.getTerm());
+        }
+
+        return index.evaluate(terms, k, postingsBudget);
+    }
+
+    /**
+     *  Map an existing impact index file.
+     *  @param path The impact index file.
+     *  @throws IOException Error reading the file.
+     */
+    private ImpactIndex(String path) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Impact index " + path + " is larger than 2 GB.");
+            }
+
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (this.buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not an impact index.");
+        }
+
+        if (this.buffer.getInt(4) != VERSION) {
+            throw new IOException("Impact index " + path + " has an old format.  Rebuild it.");
+        }
+
+        this.k_1 = this.buffer.getDouble(16);
+        this.b = this.buffer.getDouble(24);
+        this.scale = this.buffer.getDouble(32);
+        this.maxDoc = this.buffer.getInt(40);
+
+        int numTerms = this.buffer.getInt(44);
+        ByteBuffer in = this.buffer.duplicate();
+
+        in.position(HEADER_SIZE);
+        this.field = readString(in);
+        in.position(this.buffer.getInt(48));
+
+        for (int i = 0; i < numTerms; i++) {
+            String term = readString(in);
+            this.dictionary.put(term, in.getInt());
+        }
+
+        int maxDoc = this.maxDoc;
+        this.accumulators = ThreadLocal.withInitial(() -> new int[maxDoc]);
+        this.matched = ThreadLocal.withInitial(() -> new BitSet(maxDoc));
+    }
+
+    /**
+     *  Score-at-a-time evaluation.  The segments of all query terms
+     *  are sorted by impact, and their postings are added to integer
+     *  accumulators until the budget is used.  A term that occurs
+     *  more than once in the query is added once for each occurrence,
+     *  as #SUM does.
+     *  @param terms The query terms.
+     *  @param k The number of results to keep.
+     *  @param budget The number of postings to read, or 0 for all.
+     *  @return The top k results.
+     */
+    private TopKCollector evaluate(List<String> terms, int k, long budget) {
+
+        //  Each segment is {impact, start of its docids}, plus its
+        //  count in a parallel list.
+
+        List<int[]> segments = new ArrayList<>();
+
+        for (String term : terms) {
+            Integer start = this.dictionary.get(term);
+
+            if (start == null) {
+                continue;
+            }
+
+            int numSegments = this.buffer.getInt(start);
+            int position = start + 4;
+
+            for (int s = 0; s < numSegments; s++) {
+                int impact = this.buffer.getInt(position);
+                int count = this.buffer.getInt(position + 4);
+                segments.add(new int[] {impact, position + 8, count});
+                position += 8 + 4 * count;
+            }
+        }
+
+        segments.sort((s1, s2) -> Integer.compare(s2[0], s1[0]));
+
+        int[] acc = this.accumulators.get();
+        BitSet seen = this.matched.get();
+        int[] touched = new int[16];
+        int numTouched = 0;
+        long remaining = (budget > 0) ? budget : Long.MAX_VALUE;
+
+        for (int[] segment : segments) {
+            int impact = segment[0];
+            int count = (int) Math.min(segment[2], remaining);
+
+            for (int i = 0; i < count; i++) {
+                int docid = this.buffer.getInt(segment[1] + 4 * i);
+
+                if (!seen.get(docid)) {
+                    if (numTouched == touched.length) {
+                        touched = Arrays.copyOf(touched, 2 * touched.length);
+                    }
+
+                    seen.set(docid);
+                    touched[numTouched++] = docid;
+                }
+
+                acc[docid] += impact;
+            }
+
+            remaining -= count;
+
+            if (remaining == 0) {
+                break;
+            }
+        }
+
+        TopKCollector results = new TopKCollector(k);
+
+        for (int i = 0; i < numTouched; i++) {
+            int docid = touched[i];
+            results.collect(docid, acc[docid] * this.scale);
+            acc[docid] = 0;
+            seen.clear(docid);
+        }
+
+        return results;
+    }
+
+    /**
+     *  Write an impact index for a field of the open index.  Every
+     *  posting of the field is read twice:  once to find the highest
+     *  BM25 term score, which determines the quantization scale, and
+     *  once to quantize and write the postings.
+     *  @param field The field.
+     *  @param path The impact index file.
+     *  @param k_1 The BM25 k_1 parameter.
+     *  @param b The BM25 b parameter.
+     *  @param bits The number of bits in an impact.
+     *  @throws IOException Error accessing the index or the file.
+     */
+    public static void build(String field, String path, double k_1, double b, int bits)
+            throws IOException {
+
+        IndexReader reader = Idx.INDEXREADER;
+        Terms terms = MultiTerms.getTerms(reader, field);
+
+        if (terms == null) {
+            throw new IllegalArgumentException("The index doesn't have a " + field + " field.");
+        }
+
+        CollectionStats stats = Idx.getCollectionStats(field);
+        int maxImpact = (1 << bits) - 1;
+
+        //  Pass 1:  the highest term score.
+
+        double maxScore = 0;
+        TermPostings postings = new TermPostings();
+        TermsEnum termsEnum = terms.iterator();
+
+        while (termsEnum.next() != null) {
+            postings.read(termsEnum, field, stats, k_1, b);
+
+            for (int i = 0; i < postings.df; i++) {
+                maxScore = Math.max(maxScore, postings.scores[i]);
+            }
+        }
+
+        double scale = (maxScore > 0) ? maxScore / maxImpact : 1.0;
+
+        //  Pass 2:  the postings of each term, bucketed by impact, and
+        //  then the dictionary.
+
+        ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+        DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+        int numTerms = 0;
+        long indexVersion = (reader instanceof DirectoryReader) ?
+                ((DirectoryReader) reader).getVersion() : -1;
+        byte[] fieldBytes = field.getBytes(StandardCharsets.UTF_8);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path)))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(indexVersion);
+            out.writeDouble(k_1);
+            out.writeDouble(b);
+            out.writeDouble(scale);
+            out.writeInt(reader.maxDoc());
+            out.writeInt(0);                    // numTerms, patched below
+            out.writeInt(0);                    // dictionary start, patched below
+            writeString(out, field);
+
+            long position = HEADER_SIZE + 2 + fieldBytes.length;
+            int[] bucketCounts = new int[maxImpact + 1];
+            int[] impacts = new int[16];
+            int[] sorted = new int[16];
+
+            termsEnum = terms.iterator();
+
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                postings.read(termsEnum, field, stats, k_1, b);
+
+                if (impacts.length < postings.df) {
+                    impacts = new int[postings.df];
+                    sorted = new int[postings.df];
+                }
+
+                //  Quantize.  A posting with a positive score keeps an
+                //  impact of at least 1, so that it isn't ranked with
+                //  the postings whose score is 0.
+
+                Arrays.fill(bucketCounts, 0);
+
+                for (int i = 0; i < postings.df; i++) {
+                    int impact = (int) Math.min(maxImpact, Math.round(postings.scores[i] / scale));
+
+                    if ((impact == 0) && (postings.scores[i] > 0)) {
+                        impact = 1;
+                    }
+
+                    impacts[i] = impact;
+                    bucketCounts[impact]++;
+                }
+
+                if (position + 4 + 8L * (maxImpact + 1) + 4L * postings.df > Integer.MAX_VALUE) {
+                    throw new IOException("Impact index " + path + " would be larger than 2 GB.");
+                }
+
+                //  Counting sort by impact, highest first; docids stay
+                //  in increasing order within a segment.
+
+                int numSegments = 0;
+                int[] bucketStarts = new int[maxImpact + 1];
+
+                for (int impact = maxImpact, start = 0; impact >= 0; impact--) {
+                    bucketStarts[impact] = start;
+                    start += bucketCounts[impact];
+
+                    if (bucketCounts[impact] > 0) {
+                        numSegments++;
+                    }
+                }
+
+                for (int i = 0; i < postings.df; i++) {
+                    sorted[bucketStarts[impacts[i]]++] = postings.docids[i];
+                }
+
+                writeString(dictionary, term.utf8ToString());
+                dictionary.writeInt((int) position);
+                numTerms++;
+
+                out.writeInt(numSegments);
+                position += 4;
+
+                for (int impact = maxImpact, start = 0; impact >= 0; impact--) {
+                    int count = bucketCounts[impact];
+
+                    if (count > 0) {
+                        out.writeInt(impact);
+                        out.writeInt(count);
+
+                        for (int i = start; i < start + count; i++) {
+                            out.writeInt(sorted[i]);
+                        }
+
+                        position += 8 + 4L * count;
+                        start += count;
+                    }
+                }
+            }
+
+            dictionary.flush();
+
+            if (position + dictionaryBytes.size() > Integer.MAX_VALUE) {
+                throw new IOException("Impact index " + path + " would be larger than 2 GB.");
+            }
+
+            dictionaryBytes.writeTo(out);
+        }
+
+        //  Patch the header.
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(44);
+            file.writeInt(numTerms);
+            file.writeInt((int) (file.length() - dictionaryBytes.size()));
+        }
+
+        System.out.println("Wrote " + numTerms + " terms to " + path +
+                " (scale " + scale + " per impact unit).");
+    }
+
+    /**
+     *  Write a string:  its UTF-8 length as a short, then its UTF-8 bytes.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length > 0xffff) {
+            throw new IOException("The term " + s.substring(0, 32) + "... is too long.");
+        }
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     *  Read a string that writeString wrote.
+     */
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  The postings of one term and their BM25 term scores, computed
+     *  as QrySopScore computes them.  The arrays are reused.
+     */
+    private static class TermPostings {
+
+        int df = 0;
+        int[] docids = new int[16];
+        double[] scores = new double[16];
+
+        void read(TermsEnum termsEnum, String field, CollectionStats stats,
+                  double k_1, double b) throws IOException {
+
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+            int[] tfs = new int[this.docids.length];
+            this.df = 0;
+
+            while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                if (this.df == this.docids.length) {
+                    this.docids = Arrays.copyOf(this.docids, 2 * this.df);
+                    this.scores = Arrays.copyOf(this.scores, 2 * this.df);
+                    tfs = Arrays.copyOf(tfs, 2 * this.df);
+                }
+
+                this.docids[this.df] = postings.docID();
+                tfs[this.df] = postings.freq();
+                this.df++;
+            }
+
+            long N = stats.numDocs;
+            double idf = Math.max(0, Math.log(1.0 * (N - this.df + 0.5) / (this.df + 0.5)));
+
+            for (int i = 0; i < this.df; i++) {
+                double tf = tfs[i];
+                double doclen = Idx.getFieldLength(field, this.docids[i]);
+                this.scores[i] = idf * tf / (tf + k_1 * (1 - b + b * (doclen / stats.avgFieldLength)));
+            }
+        }
+    }
+}
@@ -18,6 +18,13 @@ public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The number of postings in a block.  Each block of postings has
+   *  a maximum tf and a minimum field length (see getBlockMaxTf),
+   *  which are used for block-max dynamic pruning.
+   */
+  public static final int BLOCK_SIZE = 128;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -36,57 +43,62 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The largest term frequency in the inverted list.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  public int maxTf = 0;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Whether inverted lists record block bounds (see setBlockBounds).
    */
-  public class DocPosting {
+  private static volatile boolean recordBlockBounds = false;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
+  /**
+   *  The maximum tf and the minimum field length of each block of
+   *  postings, interleaved, or null if they weren't recorded.  They
+   *  require the length of every document in the list, so they are
+   *  recorded while the postings are read, and only when block-max
+   *  pruning needs them.
+   */
+  private int[] blockBounds = null;
 
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  The length of the field in the shortest document in the list, if
+   *  the block bounds were recorded; otherwise 0, which is a lower
+   *  bound for any list.
+   */
+  private long minFieldLength = 0;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  Postings are stored in flat primitive arrays rather than as one
+   *  object per document.  The n'th posting is docids[n] and tfs[n];
+   *  its positions are positions[positionStarts[n]] through
+   *  positions[positionStarts[n+1]-1].  The arrays may have unused
+   *  capacity at the end; df and ctf give the number of entries in use.
+   */
+  private int[] docids;
+  private int[] tfs;
+  private int[] positionStarts;
+  private int[] positions;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  //  --------------- Methods ---------------------------------------
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
+  /**
+   *  Record the maximum tf and minimum field length of each block of
+   *  postings (and of the whole list) while inverted lists are read
+   *  or built, or don't (the default).  Recording them reads the
+   *  length of every document in the list, so it should be enabled
+   *  only for block-max pruning.
+   *  @param record True to record block bounds.
+   */
+  public static void setBlockBounds (boolean record) {
+    InvList.recordBlockBounds = record;
   }
 
-  //  --------------- Methods ---------------------------------------
-
   /**
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (16, 64);
   }
 
   /**
@@ -95,6 +107,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (16, 64);
   }
 
   /**
@@ -114,8 +127,21 @@ public class InvList {
     BytesRef termBytesRef = new BytesRef(termString);
     Term term = new Term(fieldString, termBytesRef);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int docFreq = Idx.INDEXREADER.docFreq(term);
+
+    if (docFreq < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index statistics give the final sizes of the arrays, so
+    //  they are allocated once.  (They are only hints; deleted
+    //  documents may still be counted.)
+
+    this.allocate (docFreq,
+		   (int) Math.max (0, Idx.INDEXREADER.totalTermFreq(term)));
+
+    boolean bounds = InvList.recordBlockBounds;
 
     //  Lucene indexes have segments, so postings must be retrieved
     //  from each segment.  Some segments may have no postings.
@@ -127,6 +153,12 @@ public class InvList {
 
       if (postings != null) {
 
+	//  Field lengths come from the leaf's norms, which are read in
+	//  docid order along with the postings.
+
+	NumericDocValues norms =
+	  bounds ? context.reader().getNormValues (fieldString) : null;
+
 	//  Convert from Lucene inverted list format to our inverted
 	//  list format. This is a little inefficient, but allows query
 	//  operators such as #SYN and #NEAR/n to be insulated from the
@@ -136,50 +168,173 @@ public class InvList {
 
 	  int docid = context.docBase + postings.docID();
 	  int tf = postings.freq();
-	  int[] positions = new int[tf];
+
+	  this.ensureCapacity (this.df + 1, this.ctf + tf);
+	  this.docids[this.df] = docid;
+	  this.tfs[this.df] = tf;
 
 	  for (int j = 0; j < tf; j++)
-	    positions[j] = postings.nextPosition();
+	    this.positions[this.ctf + j] = postings.nextPosition();
+
+	  if (bounds) {
+	    long length =
+	      ((norms != null) && norms.advanceExact (postings.docID ())) ?
+	      norms.longValue () : 0;
+	    this.recordBounds (tf, length);
+	  }
 
-	  this.postings.add(new DocPosting(docid, positions));
 	  this.df++;
 	  this.ctf += tf;
+	  this.positionStarts[this.df] = this.ctf;
+	  this.maxTf = Math.max (this.maxTf, tf);
 	}
       }
     }
   }
 
+  /**
+   *  Allocate the posting arrays.
+   *  @param numPostings The initial posting capacity.
+   *  @param numPositions The initial position capacity.
+   */
+  private void allocate (int numPostings, int numPositions) {
+    this.docids = new int[numPostings];
+    this.tfs = new int[numPostings];
+    this.positionStarts = new int[numPostings + 1];
+    this.positions = new int[numPositions];
+  }
+
+  /**
+   *  Make sure that the posting arrays can hold at least the
+   *  specified number of postings and positions, growing them
+   *  geometrically if necessary.
+   *  @param numPostings The required posting capacity.
+   *  @param numPositions The required position capacity.
+   */
+  private void ensureCapacity (int numPostings, int numPositions) {
+
+    if (numPostings > this.docids.length) {
+      int n = Math.max (numPostings, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+      this.positionStarts = Arrays.copyOf (this.positionStarts, n + 1);
+    }
+
+    if (numPositions > this.positions.length) {
+      int n = Math.max (numPositions, 2 * this.positions.length);
+      this.positions = Arrays.copyOf (this.positions, n);
+    }
+  }
+
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
    *  @param positions A list of positions where the term occurs.
    *  @return true if the posting was added successfully, otherwise false.
+   *  @throws IOException Error accessing the Lucene index.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
-    //  A posting can only be appended if its docid is greater than
-    //  the last docid.
+  public boolean appendPosting (int docid, List<Integer> positions)
+    throws IOException {
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    int[] buffer = new int[positions.size()];
+
+    for (int j = 0; j < buffer.length; j++)
+      buffer[j] = positions.get(j);
+
+    return this.appendPosting (docid, buffer, buffer.length);
+  }
+
+  /**
+   *  Append a posting to the posting list from a position buffer.
+   *  Posting must be appended in docid order, otherwise this method
+   *  fails.  The positions are copied, so the caller may reuse the
+   *  buffer.
+   *  @param docid The internal document id of the posting.
+   *  @param positions A buffer of positions where the term occurs.
+   *  @param tf The number of positions in the buffer.
+   *  @return true if the posting was added successfully, otherwise false.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public boolean appendPosting (int docid, int[] positions, int tf)
+    throws IOException {
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    if (InvList.recordBlockBounds) {
+      this.recordBounds (tf, Idx.getFieldLength (this.field, docid));
+    }
+
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    System.arraycopy (positions, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.positionStarts[this.df] = this.ctf;
+    this.maxTf = Math.max (this.maxTf, tf);
     return true;
   }
 
+  /**
+   *  Find the first posting at or after index start whose docid is at
+   *  least docid.  The search gallops (1, 2, 4, ... postings) to find
+   *  a range that contains the answer and then does a binary search
+   *  within it, so the cost is logarithmic in the distance moved
+   *  rather than linear.  This makes it cheap for a short inverted
+   *  list to drive the intersection with a long one.
+   *  @param start The index of the first posting to consider.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int start, int docid) {
+
+    if ((start >= this.df) || (this.docids[start] >= docid))
+      return start;
+
+    //  Invariant: docids[lo] < docid, and either hi == df or
+    //  docids[hi] >= docid.
+
+    int lo = start;
+    int hi = this.df;
+    int step = 1;
+
+    while (step < this.df - start) {
+      int i = start + step;
+
+      if (this.docids[i] >= docid) {
+	hi = i;
+	break;
+      }
+
+      lo = i;
+      step <<= 1;
+    }
+
+    lo ++;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.docids[mid] < docid)
+	lo = mid + 1;
+      else
+	hi = mid;
+    }
+
+    return lo;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param docid The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+    return this.docids[docid];
   }
 
   /**
@@ -188,7 +343,116 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Get the i'th location of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested location, 0 &le; i &lt; tf.
+   *  @return The location.
+   */
+  public int getPosition(int n, int i) {
+    return this.positions[this.positionStarts[n] + i];
+  }
+
+  /**
+   *  Add the tf and field length of the next posting (the df'th) to
+   *  the block bounds.
+   *  @param tf The term frequency.
+   *  @param length The length of the field in the document.
+   */
+  private void recordBounds (int tf, long length) {
+
+    int block = this.df / BLOCK_SIZE;
+    int clamped = (int) Math.min (length, Integer.MAX_VALUE);
+
+    if (this.blockBounds == null) {
+      this.blockBounds = new int[2 * Math.max (1, (this.docids.length + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+    } else if (2 * block + 1 >= this.blockBounds.length) {
+      this.blockBounds = Arrays.copyOf (this.blockBounds, Math.max (2 * block + 2, 2 * this.blockBounds.length));
+    }
+
+    if (this.df % BLOCK_SIZE == 0) {
+      this.blockBounds[2 * block] = tf;
+      this.blockBounds[2 * block + 1] = clamped;
+    } else {
+      this.blockBounds[2 * block] = Math.max (this.blockBounds[2 * block], tf);
+      this.blockBounds[2 * block + 1] = Math.min (this.blockBounds[2 * block + 1], clamped);
+    }
+
+    this.minFieldLength = (this.df == 0) ? length : Math.min (this.minFieldLength, length);
+  }
+
+  /**
+   *  Get the index of the block that contains the n'th posting.
+   *  @param n The index of a posting.
+   *  @return The block index.
+   */
+  public int getBlock (int n) {
+    return n / BLOCK_SIZE;
+  }
+
+  /**
+   *  Get the docid of the last posting in a block.
+   *  @param block The block index.
+   *  @return The last docid in the block.
+   */
+  public int getBlockLastDocid (int block) {
+    return this.docids[Math.min (this.df, (block + 1) * BLOCK_SIZE) - 1];
+  }
+
+  /**
+   *  Get the largest tf in a block, or the largest tf in the list if
+   *  block bounds weren't recorded.
+   *  @param block The block index.
+   *  @return The maximum tf.
+   */
+  public int getBlockMaxTf (int block) {
+    return (this.blockBounds != null) ? this.blockBounds[2 * block] : this.maxTf;
+  }
+
+  /**
+   *  Get the length of the field in the shortest document in a block,
+   *  or 0 if block bounds weren't recorded.
+   *  @param block The block index.
+   *  @return The minimum field length.
+   */
+  public long getBlockMinFieldLength (int block) {
+    return (this.blockBounds != null) ? this.blockBounds[2 * block + 1] : 0;
+  }
+
+  /**
+   *  Get the length of the field in the shortest document in the
+   *  inverted list if block bounds were recorded, or 0, which is a
+   *  lower bound for any list.
+   *  @return The minimum field length.
+   */
+  public long getMinFieldLength () {
+    return this.minFieldLength;
+  }
+
+  /**
+   *  Estimate the memory that the inverted list uses, e.g., to weigh
+   *  it in a cache.  The estimate includes unused array capacity and
+   *  the block bounds, if they were recorded.
+   *  @return The size in bytes.
+   */
+  public long sizeInBytes () {
+    int[] bounds = this.blockBounds;
+    long size = 64;                     // Object headers and fields
+
+    size += 16 + 4L * this.docids.length;
+    size += 16 + 4L * this.tfs.length;
+    size += 16 + 4L * this.positionStarts.length;
+    size += 16 + 4L * this.positions.length;
+
+    if (bounds != null) {
+      size += 16 + 4L * bounds.length;
+    }
+
+    return size;
   }
 
   /**
@@ -199,11 +463,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.getTf(i); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
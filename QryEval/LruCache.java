@@ -0,0 +1,193 @@
+import java.util.*;
+
+/**
+ *  A thread-safe cache that is bounded by the total weight (e.g., the
+ *  size in bytes) of its values and evicts the least recently used
+ *  entries first.  Entries may also expire a fixed time after they are
+ *  added.  It counts hits, misses, and evictions, so that a run can
+ *  report how well the cache worked.
+ *  <p>
+ *  Values must not be modified after they are added, because they
+ *  may be shared by several queries and threads.
+ *  </p>
+ *  @param <K> The key type.  Keys must implement equals and hashCode.
+ *  @param <V> The value type.
+ */
+public class LruCache<K, V> {
+
+    //  --------------- Constants and variables ---------------------
+
+    private final String name;
+    private final long capacity;
+    private final Weigher<V> weigher;
+    private final long ttlNanos;
+
+    //  An access-ordered LinkedHashMap iterates from the least
+    //  recently used entry to the most recently used entry.
+
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Create an empty cache.
+     *  @param name A name for the statistics.
+     *  @param capacity The largest total weight of the values.
+     *  @param weigher Determines the weight of a value.
+     */
+    public LruCache(String name, long capacity, Weigher<V> weigher) {
+        this(name, capacity, weigher, 0);
+    }
+
+    /**
+     *  Create an empty cache whose entries expire.
+     *  @param name A name for the statistics.
+     *  @param capacity The largest total weight of the values.
+     *  @param weigher Determines the weight of a value.
+     *  @param ttlMillis How long an entry lasts after it is added, in
+     *  milliseconds, or 0 if entries don't expire.
+     */
+    public LruCache(String name, long capacity, Weigher<V> weigher, long ttlMillis) {
+        this.name = name;
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    /**
+     *  Get the value for a key, and make it the most recently used.
+     *  @param key The key.
+     *  @return The value, or null if the key isn't cached.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = this.map.get(key);
+
+        if ((entry != null) && (this.ttlNanos > 0) &&
+            (System.nanoTime() - entry.created > this.ttlNanos)) {
+            this.map.remove(key);
+            this.weight -= entry.weight;
+            this.expirations++;
+            entry = null;
+        }
+
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+
+        this.hits++;
+        return entry.value;
+    }
+
+    /**
+     *  Add a value, replacing any value that the key already has, and
+     *  evict the least recently used values until the cache is within
+     *  its capacity.  A value that is heavier than the whole cache
+     *  isn't added.
+     *  @param key The key.
+     *  @param value The value.
+     */
+    public synchronized void put(K key, V value) {
+        long w = this.weigher.weigh(value);
+
+        if (w > this.capacity) {
+            return;
+        }
+
+        Entry<V> old = this.map.put(key, new Entry<>(value, w));
+
+        if (old != null) {
+            this.weight -= old.weight;
+        }
+
+        this.weight += w;
+
+        Iterator<Map.Entry<K, Entry<V>>> lru = this.map.entrySet().iterator();
+
+        while (this.weight > this.capacity) {
+            Entry<V> evicted = lru.next().getValue();
+            lru.remove();
+            this.weight -= evicted.weight;
+            this.evictions++;
+        }
+    }
+
+    /**
+     *  Remove every entry.  The statistics are kept.
+     */
+    public synchronized void clear() {
+        this.map.clear();
+        this.weight = 0;
+    }
+
+    /**
+     *  Get the number of lookups that found a value.
+     *  @return The number of hits.
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     *  Get the number of lookups that didn't find a value.
+     *  @return The number of misses.
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     *  Get the total weight of the cached values.
+     *  @return The weight.
+     */
+    public synchronized long getWeight() {
+        return this.weight;
+    }
+
+    /**
+     *  Get the number of cached values.
+     *  @return The number of values.
+     */
+    public synchronized int size() {
+        return this.map.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = this.hits + this.misses;
+        return String.format("%s: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d expirations, %d entries, %d of %d",
+                this.name, this.hits, this.misses,
+                (lookups == 0) ? 0.0 : 100.0 * this.hits / lookups,
+                this.evictions, this.expirations, this.map.size(), this.weight, this.capacity);
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  Determines how much of the cache's capacity a value uses.
+     *  @param <V> The value type.
+     */
+    public interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    /**
+     *  A cached value, its weight, which is computed once, and when
+     *  it was added.
+     */
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+        final long created = System.nanoTime();
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -360,7 +360,7 @@ public abstract class Qry {
      *  Set the matching docid cache.
      *  @param docid The internal document id to store in the cache.
      */
-    private void docIteratorSetMatchCache(int docid) {
+    protected void docIteratorSetMatchCache(int docid) {
         this.docIteratorMatchCache = docid;
     }
 
@@ -420,13 +420,37 @@ public abstract class Qry {
      */
     @Override
     public String toString() {
+        return (this.displayName + "( " + this.argsToString(false) + ")");
+    }
+
+    /**
+     *  Get a canonical string version of this query operator, e.g., to
+     *  key caches.  It is the same as toString, except that operator
+     *  names are lower case, so that #AND and #and have the same
+     *  canonical string.
+     *  @return The canonical string version of this query operator.
+     */
+    public String toCanonicalString() {
+        return (this.displayName.toLowerCase() + "( " + this.argsToString(true) + ")");
+    }
+
+    /**
+     *  Get a string version of the query arguments for toString or
+     *  toCanonicalString.  Operators that have weights override it to
+     *  include them.
+     *  @param canonical True to use the arguments' canonical strings.
+     *  @return The string version of the query arguments.
+     */
+    protected String argsToString(boolean canonical) {
 
         String result = new String();
 
-        for (int i = 0; i < this.args.size(); i++)
-            result += this.args.get(i) + " ";
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
+            result += (canonical ? q_i.toCanonicalString() : q_i.toString()) + " ";
+        }
 
-        return (this.displayName + "( " + result + ")");
+        return result;
     }
 
 }
@@ -7,6 +7,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This software illustrates the architecture for the portion of a
@@ -49,15 +50,99 @@ public class QryEval {
 
         Map<String, String> parameters = readParameterFile(args[0]);
 
-        //  Open the index and initialize the retrieval model.
+        //  Open the index and initialize the retrieval model.  Field
+        //  lengths can be loaded into memory when the index is opened
+        //  (cacheFieldLengths=true).
 
+        Idx.setCacheFieldLengths(parameters.containsKey("cacheFieldLengths") &&
+                parameters.get("cacheFieldLengths").equalsIgnoreCase("true"));
         Idx.open(parameters.get("indexPath"));
 
+        //  Docid translation can use a memory-mapped docid map file
+        //  that is built on first use (docidMapPath=path).
+
+        if (parameters.containsKey("docidMapPath")) {
+            Idx.useDocidMap(parameters.get("docidMapPath"));
+        }
+
+        //  Term operators can stream postings from Lucene instead of
+        //  materializing them (streamingPostings=true).
+
+        QryIopTerm.setStreaming(parameters.containsKey("streamingPostings") &&
+                parameters.get("streamingPostings").equalsIgnoreCase("true"));
+
+        //  Materialized term inverted lists can be cached across
+        //  queries (invListCacheSize=bytes).
+
+        if (parameters.containsKey("invListCacheSize")) {
+            QryIopTerm.setCacheSize(Long.parseLong(parameters.get("invListCacheSize")));
+        }
+
+        //  Term vectors, which relevance feedback and learning-to-rank
+        //  features read many times, can be cached (termVectorCacheSize=bytes).
+
+        if (parameters.containsKey("termVectorCacheSize")) {
+            TermVector.setCacheSize(Long.parseLong(parameters.get("termVectorCacheSize")));
+        }
+
+        //  Inverted lists that #SYN, #NEAR/n, and #WINDOW/n derive from
+        //  their arguments can be cached too (derivedInvListCacheSize=bytes).
+
+        if (parameters.containsKey("derivedInvListCacheSize")) {
+            QryIop.setDerivedCacheSize(Long.parseLong(parameters.get("derivedInvListCacheSize")));
+        }
+
+        //  Query results can be cached across queries and pipelines
+        //  (resultCacheSize=bytes), and can expire a fixed time after
+        //  they are cached (resultCacheTtl=seconds).
+
+        if (parameters.containsKey("resultCacheSize")) {
+            long ttl = parameters.containsKey("resultCacheTtl") ?
+                    Long.parseLong(parameters.get("resultCacheTtl")) : 0;
+            ResultCache.setCacheSize(Long.parseLong(parameters.get("resultCacheSize")), ttl);
+        }
+
+        //  A single query can be evaluated by several threads, each of
+        //  which handles part of the index (segmentThreads=n).
+
+        if (parameters.containsKey("segmentThreads")) {
+            SegmentEvaluator.setThreads(Integer.parseInt(parameters.get("segmentThreads")));
+        }
+
+        //  Flat BM25 #SUM and Indri #AND queries can be evaluated
+        //  term-at-a-time with accumulators (termAtATime=true).
+
+        TermAtATimeEvaluator.setEnabled(parameters.containsKey("termAtATime") &&
+                parameters.get("termAtATime").equalsIgnoreCase("true"));
+
+        //  Top-k retrieval can skip documents that can't make the top k
+        //  (pruning=none|wand|bmw|maxscore).
+
+        if (parameters.containsKey("pruning")) {
+            QrySop.setPruning(parameters.get("pruning"));
+        }
+
+        //  Documents are scored by scorers that are compiled for each
+        //  query, unless compiledScoring=false.
+
+        QryScorer.setEnabled(!parameters.containsKey("compiledScoring") ||
+                parameters.get("compiledScoring").equalsIgnoreCase("true"));
+
         RetrievalModel model = null;
         if (parameters.containsKey("retrievalAlgorithm")){
             model = initializeRetrievalModel(parameters);
         }
 
+        //  Flat BM25 queries can be evaluated score-at-a-time with an
+        //  impact index that ImpactIndex built (impactIndexPath=path),
+        //  optionally reading at most impactPostingsBudget=n postings.
+
+        if (parameters.containsKey("impactIndexPath")) {
+            long budget = parameters.containsKey("impactPostingsBudget") ?
+                    Long.parseLong(parameters.get("impactPostingsBudget")) : 0;
+            ImpactIndex.use(parameters.get("impactIndexPath"), model, budget);
+        }
+
         if ((model instanceof RetrievalModelLetor)) {
             conductLearnToRank(parameters, (RetrievalModelLetor)model);
         } else {
@@ -65,6 +150,22 @@ public class QryEval {
             processQueryFile(parameters, model);
         }
 
+        if (QryIopTerm.getCache() != null) {
+            System.out.println(QryIopTerm.getCache());
+        }
+
+        if (QryIop.getDerivedCache() != null) {
+            System.out.println(QryIop.getDerivedCache());
+        }
+
+        if (TermVector.getCache() != null) {
+            System.out.println(TermVector.getCache());
+        }
+
+        if (ResultCache.getCache() != null) {
+            System.out.println(ResultCache.getCache());
+        }
+
         //  Clean up.
         timer.stop();
         System.out.println("Time:  " + timer);
@@ -77,7 +178,7 @@ public class QryEval {
      * @return The initialized retrieval model
      * @throws IOException Error accessing the Lucene index.
      */
-    private static RetrievalModel initializeRetrievalModel(Map<String, String> parameters)
+    static RetrievalModel initializeRetrievalModel(Map<String, String> parameters)
             throws IOException {
 
         RetrievalModel model = null;
@@ -144,10 +245,11 @@ public class QryEval {
      *
      * @param qString A string that contains a query.
      * @param model   The retrieval model determines how matching and scoring is done.
-     * @return Search results
+     * @param k       The number of results to keep.
+     * @return The top k search results, best first
      * @throws IOException Error accessing the index
      */
-    static ScoreList processQuery(String qString, RetrievalModel model)
+    static ScoreList processQuery(String qString, RetrievalModel model, int k)
             throws IOException {
 
         String defaultOp = model.defaultQrySopName();
@@ -160,25 +262,95 @@ public class QryEval {
 
         if (q != null) {
 
-            ScoreList results = new ScoreList();
+            ScoreList cached = ResultCache.get(q, model, k);
+
+            if (cached != null) {
+                return cached;
+            }
+
+            TopKCollector results = new TopKCollector(k);
 
             if (q.args.size() > 0) {        // Ignore empty queries
 
-                q.initialize(model);
+                //  Flat queries may have faster evaluators, which return
+                //  null for queries that they don't support.
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    results.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+                TopKCollector flat = null;
+                boolean initialized = false;
+
+                if (ImpactIndex.isEnabled()) {
+                    flat = ImpactIndex.evaluate(q, model, k);
+                }
+
+                if ((flat == null) && TermAtATimeEvaluator.isEnabled() &&
+                    TermAtATimeEvaluator.isSupported(q, model)) {
+                    q.initialize(model);
+                    initialized = true;
+                    flat = TermAtATimeEvaluator.evaluate(q, model, k);
+                }
+
+                if (flat != null) {
+                    results = flat;
+                } else if (SegmentEvaluator.isEnabled()) {
+                    results = SegmentEvaluator.evaluate(qString, q, model, k);
+                } else {
+                    if (!initialized) {
+                        q.initialize(model);
+                    }
+
+                    evaluate(q, model, results, 0, Integer.MAX_VALUE);
                 }
             }
 
-            return results;
+            ScoreList scores = results.getScoreList();
+            ResultCache.put(q, model, k, scores);
+            return scores;
         } else
             return null;
     }
 
+    /**
+     * Evaluate an initialized query over a range of internal docids.
+     *
+     * @param q        An initialized query.
+     * @param model    The retrieval model determines how matching and scoring is done.
+     * @param results  Collects the matching documents.
+     * @param minDocid The first docid to evaluate.
+     * @param maxDocid The end (exclusive) of the docid range.
+     * @throws IOException Error accessing the index
+     */
+    static void evaluate(Qry q, RetrievalModel model, TopKCollector results,
+                         int minDocid, int maxDocid)
+            throws IOException {
+
+        //  The root operator may use the results so far to skip
+        //  documents that can't enter them (see QrySop.setPruning).
+
+        ((QrySop) q).setTopKCollector(results);
+
+        //  Scoring uses a scorer that is compiled for this query and
+        //  model, if there is one (see QryScorer).
+
+        QryScorer scorer = QryScorer.compile((QrySop) q, model);
+
+        if (minDocid > 0) {
+            q.docIteratorAdvanceTo(minDocid);
+        }
+
+        while (q.docIteratorHasMatch(model)) {
+            int docid = q.docIteratorGetMatch();
+
+            if (docid >= maxDocid) {
+                break;
+            }
+
+            double score = (scorer != null) ?
+                    scorer.score(docid) : ((QrySop) q).getScore(model);
+            results.collect(docid, score);
+            q.docIteratorAdvancePast(docid);
+        }
+    }
+
     /**
      * Process the query file.
      *
@@ -195,6 +367,8 @@ public class QryEval {
         String queryFilePath = parameters.get("queryFilePath");
         String outputPath = parameters.get("trecEvalOutputPath");
         int outputLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+        outputLength = parameters.containsKey("diversity:maxResultRankingLength")?
+                Integer.parseInt(parameters.get("diversity:maxResultRankingLength")):outputLength;
         boolean flag = parameters.containsKey("diversity") &&
                         parameters.get("diversity").equalsIgnoreCase("true");
 
@@ -219,6 +393,16 @@ public class QryEval {
            diversity.setInitialRankingMap(initialRankingMap);
        }
 
+        //  Queries are independent, so numThreads=n evaluates up to n
+        //  query lines at once.  Results are written in input order.
+
+        int numThreads = parameters.containsKey("numThreads") ?
+                Integer.parseInt(parameters.get("numThreads")) : 1;
+        ExecutorService pool = (numThreads > 1) ? Executors.newFixedThreadPool(numThreads) : null;
+        String fbExpansionQueryFile = parameters.get("fbExpansionQueryFile");
+        final int resultLength = outputLength;
+        final Diversity diversityState = diversity;
+
         try {
             String qLine = null;
 
@@ -226,151 +410,226 @@ public class QryEval {
 
             FileWriter outputFile = new FileWriter(outputPath);
             BufferedWriter outputWrite = new BufferedWriter(outputFile);
+            ArrayDeque<Future<QueryResult>> pending = new ArrayDeque<>();
             //  Each pass of the loop processes one query.
 
             while ((qLine = input.readLine()) != null) {
+                final String line = qLine;
 
-                printMemoryUsage(false);
-                System.out.println("Query " + qLine);
-                String[] pair = qLine.split(":");
-
-                if (pair.length != 2) {
-                    throw new IllegalArgumentException
-                            ("Syntax error:  Each line must contain one ':'.");
+                if (pool == null) {
+                    writeQueryResult(processQueryLine(line, parameters, model, diversityState, flag, resultLength),
+                            outputWrite, fbExpansionQueryFile, resultLength);
+                    continue;
                 }
 
-                String qid = pair[0].trim();
-                String query = pair[1];
-                ScoreList results = null;
-                //if (the fb= parameter is missing from the parameter file or set to false)
-                if (!parameters.containsKey("fb") || parameters.get("fb").equals(false)) {
-                    if(!flag) results = processQuery(query, model);//use the query to retrieve documents;
-                    else{//need diversification
-                        String algorithm = parameters.get("diversity:algorithm");
-                        results = diversity.getResult(qid,algorithm);
-                    }
-                } else {
-                    int fbDocs = Integer.valueOf(parameters.get("fbDocs"));//determines the number of documents to use for query expansion.
-                    int fbTerms = Integer.valueOf(parameters.get("fbTerms"));//determines the number of terms that are added to the query.
-                    int fbMu = Integer.valueOf(parameters.get("fbMu"));//determines the amount of smoothing used to calculate p(r|d).
-                    double fbOrigWeight = Double.valueOf(parameters.get("fbOrigWeight"));//determines the weight on the original query.
-                    String fbExpansionQueryFile = parameters.get("fbExpansionQueryFile");
-
-                    //if (the fbInitialRankingFile= parameter is specified)
-                    if (parameters.containsKey("fbInitialRankingFile")) {
-                        //read a document ranking in trec_eval input format from the fbInitialRankingFile;
-                        Map<String, ScoreList> map = processInitialRankingFile(parameters.get("fbInitialRankingFile"));
-                        results = map.get(qid);
-                        //System.out.println(results);
-                    } else {
-                        //use the query to retrieve documents;
-                        results = processQuery(query, model);
-                        results.sort();
-                    }
-
-                    //use the Indri query expansion algorithm (Lecture 11, slides #30-36) to produce an expanded query;
-                    //map term t to p(t|I)
-                    Map<String, Double> termScore = new HashMap<>();
-                    //Map<String, Long> termCtf = new HashMap<>();
-                    long colLen = Idx.getSumOfFieldLengths("body");
-
-                    for (int j = 0; j < fbDocs; j++) {
-                        int docId = results.getDocid(j);
-                        TermVector termVector = new TermVector(docId, "body");
-                        // The 0'th entry is an empty string. It indicates a stopword.
-                        for (int i = 1; i < termVector.stemsLength(); i++) {
-                            //the string for the i'th stem, or null if the index is invalid.
-                            String stem = termVector.stemString(i);
-                            //Your query expansion software should ignore any candidate expansion term that contains a period ('.') or a comma (',').
-                            if (stem.contains(".") || stem.contains(",")) continue;
-                            if (!termScore.containsKey(stem)) termScore.put(stem, 0.0);
-                            //if (!termCtf.containsKey(stem)) termCtf.put(stem, termVector.totalStemFreq(i));
-                        }
-                    }
+                pending.add(pool.submit(() ->
+                        processQueryLine(line, parameters, model, diversityState, flag, resultLength)));
 
-                    for (String stem : termScore.keySet()) {
-                        for (int j = 0; j < fbDocs; j++) {
-                            int docId = results.getDocid(j);
-                            double docScore = results.getDocidScore(j);
-                            long docLen = Idx.getFieldLength("body", docId);
-                            TermVector termVector = new TermVector(docId, "body");
-                            //Get the index of stem in the stems vector, or -1 if the stems vector does not contain the stem.
-                            int i = termVector.indexOfStem(stem);
-                            //the frequency of the n'th stem in the current doc, or -1 if the index is invalid.
-                            int tf = (i == -1) ? 0 : termVector.stemFreq(i);
-                            //ctf of the i'th stem
-                            long ctf = Idx.getTotalTermFreq("body", stem);
-                            //p(t|d)=(tf+mu*ctf/colLen)/(docLen+mu)= (tf+fbMu*ctf/colLen)/(docLen+fbMu);
-                            double pti = ((tf + fbMu * ctf * 1.0 / colLen) * 1.0 / (docLen + fbMu)) * docScore * Math.log((1.0 * colLen) / ctf);
-                            termScore.put(stem, termScore.get(stem) + pti);
-                        }
-                    }
+                //  Bound the number of finished results held in memory.
 
-                    PriorityQueue<Map.Entry<String, Double>> pq = new PriorityQueue<>((p1, p2) -> p1.getValue().compareTo(p2.getValue()));
-                    for (Map.Entry<String, Double> entry : termScore.entrySet()) {
-                        pq.offer(entry);
-                        if (pq.size() > fbTerms) pq.poll();
-                    }
-
-                    //get expanded query
-                    StringBuilder sb = new StringBuilder();
-                    StringBuilder raw = new StringBuilder();
-                    sb.append("#wand ( ");
-                    raw.append("#wand ( ");
-                    for (int i = 0; i < fbTerms; i++) {
-                        Map.Entry<String, Double> entry = pq.poll();
-                        double w = entry.getValue();
-                        raw.append(String.format("%.4f", w)).append(" ")
-                                .append(entry.getKey()).append(" ");
-                        String s = entry.getKey();
-                        if (s.matches("\\d+(\\.\\d+)?")) s = s + "zzzzzzzzzzzzzzzzzzzzzzz";
-                        w = (double) Math.round(w * 10000) / 10000;
-                        sb.append(String.format("%.4f", w)).append(" ")
-                                .append(s).append(" ");
-                    }
-                    sb.append(")");
-                    raw.append(")");
-                    String rawExpandedQuery = raw.toString();
-                    String expandedQuery = sb.toString();
-                    //System.out.println(expandedQuery);
-
-                    //write the expanded query to a file
-                    BufferedWriter expandedQueryWrite = new BufferedWriter(new FileWriter(fbExpansionQueryFile, true));
-                    expandedQueryWrite.write(qid + ": " + rawExpandedQuery + "\n");
-                    expandedQueryWrite.close();
-
-                    //create a combined query as #wand (w qoriginal + (1-w) qexpandedquery);
-                    sb = new StringBuilder();
-                    sb.append("#wand (")
-                            .append(fbOrigWeight).append(" ")
-                            .append("#and (")
-                            .append(query).append(" ) ")
-                            .append(1 - fbOrigWeight).append(" ")
-                            .append(expandedQuery).append(" )");
-
-                    String combinedQuery = sb.toString();
-                    //System.out.println(combinedQuery);
-
-                    //use the combined query to retrieve documents;
-                    results = processQuery(combinedQuery, model);
+                if (pending.size() >= 2 * numThreads) {
+                    writeQueryResult(pending.remove().get(), outputWrite, fbExpansionQueryFile, resultLength);
                 }
+            }
 
-                if (results != null) {
-                    results.sort();
-                    outputLength = parameters.containsKey("diversity:maxResultRankingLength")?
-                            Integer.parseInt(parameters.get("diversity:maxResultRankingLength")):outputLength;
-                    if (results.size()>outputLength) results.truncate(outputLength);
-                    printResults(qid, results, outputWrite);
-                    System.out.println();
-                }
+            while (!pending.isEmpty()) {
+                writeQueryResult(pending.remove().get(), outputWrite, fbExpansionQueryFile, resultLength);
             }
             outputWrite.close();
         } catch (IOException ex) {
             ex.printStackTrace();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             input.close();
+            if (pool != null) pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Evaluate one line of the query file.  This method may be called
+     * by several threads at once, so it doesn't write any files; its
+     * result is written by writeQueryResult.
+     *
+     * @param qLine        A query line, qid:query.
+     * @param parameters   Parameters
+     * @param model        A retrieval model that will guide matching and scoring
+     * @param diversity    The diversification state, or null
+     * @param flag         True if the results should be diversified
+     * @param outputLength The number of results to keep
+     * @return The query's results
+     * @throws Exception Error accessing the Lucene index or a syntax error.
+     */
+    static QueryResult processQueryLine(String qLine, Map<String, String> parameters,
+                                        RetrievalModel model, Diversity diversity,
+                                        boolean flag, int outputLength)
+            throws Exception {
+
+        printMemoryUsage(false);
+        System.out.println("Query " + qLine);
+        String[] pair = qLine.split(":");
+
+        if (pair.length != 2) {
+            throw new IllegalArgumentException
+                    ("Syntax error:  Each line must contain one ':'.");
+        }
+
+        String qid = pair[0].trim();
+        String query = pair[1];
+        ScoreList results = null;
+        String expansion = null;
+        //if (the fb= parameter is missing from the parameter file or set to false)
+        if (!parameters.containsKey("fb") || parameters.get("fb").equals(false)) {
+            if(!flag) results = processQuery(query, model, outputLength);//use the query to retrieve documents;
+            else{//need diversification
+                String algorithm = parameters.get("diversity:algorithm");
+                results = diversity.getResult(qid,algorithm);
+            }
+        } else {
+            int fbDocs = Integer.valueOf(parameters.get("fbDocs"));//determines the number of documents to use for query expansion.
+            int fbTerms = Integer.valueOf(parameters.get("fbTerms"));//determines the number of terms that are added to the query.
+            int fbMu = Integer.valueOf(parameters.get("fbMu"));//determines the amount of smoothing used to calculate p(r|d).
+            double fbOrigWeight = Double.valueOf(parameters.get("fbOrigWeight"));//determines the weight on the original query.
+
+            //if (the fbInitialRankingFile= parameter is specified)
+            if (parameters.containsKey("fbInitialRankingFile")) {
+                //read a document ranking in trec_eval input format from the fbInitialRankingFile;
+                Map<String, ScoreList> map = processInitialRankingFile(parameters.get("fbInitialRankingFile"));
+                results = map.get(qid);
+                //System.out.println(results);
+            } else {
+                //use the query to retrieve documents;
+                results = processQuery(query, model, fbDocs);
+            }
+
+            //use the Indri query expansion algorithm (Lecture 11, slides #30-36) to produce an expanded query;
+            //map term t to p(t|I)
+            Map<String, Double> termScore = new HashMap<>();
+            //Map<String, Long> termCtf = new HashMap<>();
+            long colLen = Idx.getSumOfFieldLengths("body");
+
+            //  A query may match fewer than fbDocs documents.
+
+            int numFbDocs = Math.min(fbDocs, results.size());
+
+            //  Each feedback document's term vector is decoded once and
+            //  used for every candidate term.
+
+            TermVector[] termVectors = new TermVector[numFbDocs];
+
+            for (int j = 0; j < numFbDocs; j++) {
+                int docId = results.getDocid(j);
+                TermVector termVector = TermVector.get(docId, "body");
+                termVectors[j] = termVector;
+                // The 0'th entry is an empty string. It indicates a stopword.
+                for (int i = 1; i < termVector.stemsLength(); i++) {
+                    //the string for the i'th stem, or null if the index is invalid.
+                    String stem = termVector.stemString(i);
+                    //Your query expansion software should ignore any candidate expansion term that contains a period ('.') or a comma (',').
+                    if (stem.contains(".") || stem.contains(",")) continue;
+                    if (!termScore.containsKey(stem)) termScore.put(stem, 0.0);
+                    //if (!termCtf.containsKey(stem)) termCtf.put(stem, termVector.totalStemFreq(i));
+                }
+            }
+
+            for (String stem : termScore.keySet()) {
+                //ctf of the stem
+                long ctf = Idx.getTotalTermFreq("body", stem);
+                for (int j = 0; j < numFbDocs; j++) {
+                    int docId = results.getDocid(j);
+                    double docScore = results.getDocidScore(j);
+                    long docLen = Idx.getFieldLength("body", docId);
+                    TermVector termVector = termVectors[j];
+                    //Get the index of stem in the stems vector, or -1 if the stems vector does not contain the stem.
+                    int i = termVector.indexOfStem(stem);
+                    //the frequency of the n'th stem in the current doc, or -1 if the index is invalid.
+                    int tf = (i == -1) ? 0 : termVector.stemFreq(i);
+                    //p(t|d)=(tf+mu*ctf/colLen)/(docLen+mu)= (tf+fbMu*ctf/colLen)/(docLen+fbMu);
+                    double pti = ((tf + fbMu * ctf * 1.0 / colLen) * 1.0 / (docLen + fbMu)) * docScore * Math.log((1.0 * colLen) / ctf);
+                    termScore.put(stem, termScore.get(stem) + pti);
+                }
+            }
+
+            PriorityQueue<Map.Entry<String, Double>> pq = new PriorityQueue<>((p1, p2) -> p1.getValue().compareTo(p2.getValue()));
+            for (Map.Entry<String, Double> entry : termScore.entrySet()) {
+                pq.offer(entry);
+                if (pq.size() > fbTerms) pq.poll();
+            }
+
+            //get expanded query
+            StringBuilder sb = new StringBuilder();
+            StringBuilder raw = new StringBuilder();
+            sb.append("#wand ( ");
+            raw.append("#wand ( ");
+            for (int i = 0; i < fbTerms; i++) {
+                Map.Entry<String, Double> entry = pq.poll();
+                double w = entry.getValue();
+                raw.append(String.format("%.4f", w)).append(" ")
+                        .append(entry.getKey()).append(" ");
+                String s = entry.getKey();
+                if (s.matches("\\d+(\\.\\d+)?")) s = s + "zzzzzzzzzzzzzzzzzzzzzzz";
+                w = (double) Math.round(w * 10000) / 10000;
+                sb.append(String.format("%.4f", w)).append(" ")
+                        .append(s).append(" ");
+            }
+            sb.append(")");
+            raw.append(")");
+            String rawExpandedQuery = raw.toString();
+            String expandedQuery = sb.toString();
+            //System.out.println(expandedQuery);
+
+            //the expanded query is written to a file in input order by writeQueryResult
+            expansion = qid + ": " + rawExpandedQuery + "\n";
+
+            //create a combined query as #wand (w qoriginal + (1-w) qexpandedquery);
+            sb = new StringBuilder();
+            sb.append("#wand (")
+                    .append(fbOrigWeight).append(" ")
+                    .append("#and (")
+                    .append(query).append(" ) ")
+                    .append(1 - fbOrigWeight).append(" ")
+                    .append(expandedQuery).append(" )");
+
+            String combinedQuery = sb.toString();
+            //System.out.println(combinedQuery);
+
+            //use the combined query to retrieve documents;
+            results = processQuery(combinedQuery, model, outputLength);
+        }
+
+        return new QueryResult(qid, results, expansion);
+    }
+
+    /**
+     * Write the results of one query line.  Callers write results in
+     * input order.
+     *
+     * @param result               The query's results.
+     * @param outputWrite          The trec_eval output file.
+     * @param fbExpansionQueryFile The file of expanded queries, or null.
+     * @param outputLength         The number of results to write.
+     * @throws IOException Error writing a file.
+     */
+    static void writeQueryResult(QueryResult result, BufferedWriter outputWrite,
+                                 String fbExpansionQueryFile, int outputLength)
+            throws IOException {
+
+        //write the expanded query to a file
+        if (result.expansion != null) {
+            BufferedWriter expandedQueryWrite = new BufferedWriter(new FileWriter(fbExpansionQueryFile, true));
+            expandedQueryWrite.write(result.expansion);
+            expandedQueryWrite.close();
+        }
+
+        ScoreList results = result.results;
+
+        if (results != null) {
+            results.sort();
+            if (results.size()>outputLength) results.truncate(outputLength);
+            printResults(result.qid, results, outputWrite);
+            System.out.println();
         }
     }
 
@@ -461,11 +720,7 @@ public class QryEval {
                 String query = pair[1];
 
                 //use query q to retrieve documents;
-                ScoreList results = processQuery(query,model);
-                if (results != null){
-                    results.sort();
-                    if (results.size()>maxLength) results.truncate(maxLength);
-                }
+                ScoreList results = processQuery(query,model,maxLength);
                 map.put(qid,results);
 
                 //for each of query q's intents
@@ -478,11 +733,7 @@ public class QryEval {
                     String intentsQuery= strs[1];
 
                     //use query qi to retrieve documents;
-                    ScoreList intentsResults = processQuery(intentsQuery,model);
-                    if (intentsResults != null){
-                        intentsResults.sort();
-                        if (intentsResults.size()>maxLength) intentsResults.truncate(maxLength);
-                    }
+                    ScoreList intentsResults = processQuery(intentsQuery,model,maxLength);
                     map.put(intentsQid,intentsResults);
                 }
             }
@@ -628,15 +879,14 @@ public class QryEval {
             List<String> docs = docList.get(qid);
             int len = docs.size();
 
-            ScoreList results = new ScoreList();
+            TopKCollector collector = new TopKCollector(outputLength);
             for (int i = 0; i < len; i++){
                 if (j<svmScores.size())
-                    results.add(Idx.getInternalDocid(docs.get(i)), svmScores.get(j++));
+                    collector.collect(Idx.getInternalDocid(docs.get(i)), svmScores.get(j++));
             }
 
+            ScoreList results = collector.getScoreList();
             if (results != null) {
-                results.sort();
-                if (results.size() > outputLength) results.truncate(outputLength);
                 printResults(qid,results, outputWrite);
                 System.out.println();
             }
@@ -737,12 +987,10 @@ public class QryEval {
 
                 String qid = pair[0].trim();
                 String query = pair[1];
-                ScoreList results = processQuery(query, model);
-                results.sort();
-                if (results.size() > 100) results.truncate(100);
+                ScoreList results = processQuery(query, model, 100);
                 Map<String,Integer> tmp = new HashMap<>();
                 for (int i = 0; i < results.size(); i++){
-                    tmp.put(Idx.getExternalDocid(results.getDocid(i)),i);
+                    tmp.put(results.getExternalDocid(i),i);
                 }
                 map.put(qid,tmp);
             }
@@ -803,7 +1051,7 @@ public class QryEval {
             for (int i = 0; i < result.size(); i++) {
                 StringBuilder sb = new StringBuilder();
                 sb.append(queryName)//query name
-                        .append(" Q0 ").append(Idx.getExternalDocid(result.getDocid(i)))//doc id
+                        .append(" Q0 ").append(result.getExternalDocid(i))//doc id
                         .append(" ").append(i + 1)//rank
                         .append(" ").append(result.getDocidScore(i))//score
                         .append(" reference\n");
@@ -821,7 +1069,7 @@ public class QryEval {
      *
      * @return The parameters, in <key, value> format.
      */
-    private static Map<String, String> readParameterFile(String parameterFileName)
+    static Map<String, String> readParameterFile(String parameterFileName)
             throws IOException {
 
         Map<String, String> parameters = new HashMap<String, String>();
@@ -858,4 +1106,21 @@ public class QryEval {
         return parameters;
     }
 
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The results of one query line, held until they can be written
+     * in input order.
+     */
+    static class QueryResult {
+        final String qid;
+        final ScoreList results;
+        final String expansion;         // Expanded query, or null
+
+        QueryResult(String qid, ScoreList results, String expansion) {
+            this.qid = qid;
+            this.results = results;
+            this.expansion = expansion;
+        }
+    }
 }
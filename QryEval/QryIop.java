@@ -18,6 +18,15 @@ import java.util.*;
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
  *  available via specific methods (e.g., getDf and getCtf).
+ *  QryIopTerm can optionally stream its postings from Lucene instead
+ *  of caching them; it overrides the iterator methods to do so.
+ *  </p><p>
+ *  The inverted lists that operators such as #SYN, #NEAR/n, and
+ *  #WINDOW/n derive from their arguments can be kept in a process-wide
+ *  cache (see setDerivedCacheSize), so that a subexpression that
+ *  occurs in several queries, e.g., expanded queries or diversity
+ *  intents, is evaluated once.  Cached lists are shared, so they are
+ *  only read.
  *  </p><p>
  *  QryIop operators support iteration over the locations in the
  *  document that Qry.docIteratorHasMatch matches.  The semantics
@@ -41,6 +50,13 @@ public abstract class QryIop extends Qry {
    */
   private static final int INVALID_ITERATOR_INDEX = -1;
 
+  /**
+   *  Inverted lists that operators derived from their arguments, keyed
+   *  by index, field, and the operator's canonical query string, or
+   *  null if they aren't cached.
+   */
+  private static LruCache<QryIopTerm.TermKey, InvList> derivedCache = null;
+
   /**
    *  The document field that the query operator applies to; this is
    *  inferred from query operator arguments.
@@ -63,6 +79,27 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  Cache the inverted lists that operators derive from their
+   *  arguments across queries, in a cache that evicts the least
+   *  recently used lists to stay within a memory budget.  Term
+   *  inverted lists have their own cache (see QryIopTerm).
+   *  @param bytes The size of the cache, or 0 to disable it.
+   */
+  public static void setDerivedCacheSize (long bytes) {
+    QryIop.derivedCache = (bytes > 0) ?
+      new LruCache<QryIopTerm.TermKey, InvList> ("Derived InvList cache", bytes, InvList::sizeInBytes) :
+      null;
+  }
+
+  /**
+   *  Get the derived inverted list cache, e.g., to report its statistics.
+   *  @return The cache, or null if derived inverted lists aren't cached.
+   */
+  public static LruCache<QryIopTerm.TermKey, InvList> getDerivedCache () {
+    return QryIop.derivedCache;
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -70,9 +107,11 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
     }
            
     this.locIteratorIndex = 0;
@@ -85,10 +124,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -98,7 +135,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +150,22 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the i'th location in the document that the docIterator
+   *  points to now.  The document must have at least i+1 locations.
+   *  @param i The index of the requested location.
+   *  @return The location.
+   */
+  public int docIteratorGetMatchPosition (int i) {
+    return this.invertedList.getPosition (this.docIteratorIndex, i);
+  }
+
+  /**
+   *  Return the term frequency (tf) of the document that the
+   *  docIterator points to now.
+   *  @return The term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -150,6 +197,69 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the largest term frequency in any document that this query
+   *  operator matches.  It is an error to call this method before the
+   *  object's initialize method is called.
+   *  @return The maximum term frequency.
+   */
+  public int getMaxTf () {
+    return this.invertedList.maxTf;
+  }
+
+  /**
+   *  Get the length of the field in the shortest document that this
+   *  query operator matches.  It is an error to call this method
+   *  before the object's initialize method is called.
+   *  @return The minimum field length.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getMinFieldLength () throws IOException {
+    return this.invertedList.getMinFieldLength ();
+  }
+
+  /**
+   *  Get the block of the inverted list (see InvList.BLOCK_SIZE)
+   *  that contains the first posting at or after docid, without
+   *  moving the docIterator.  docid should not be before the
+   *  docIterator's current document.
+   *  @param docid An internal document id.
+   *  @return The block index, or -1 if there is no such posting.
+   */
+  public int getBlock (int docid) {
+    int n = this.invertedList.findDocid (this.docIteratorIndex, docid);
+    return (n < this.invertedList.df) ? this.invertedList.getBlock (n) : -1;
+  }
+
+  /**
+   *  Get the docid of the last posting in a block.
+   *  @param block A block index from getBlock.
+   *  @return The last docid in the block.
+   */
+  public int getBlockLastDocid (int block) {
+    return this.invertedList.getBlockLastDocid (block);
+  }
+
+  /**
+   *  Get the largest term frequency in a block.
+   *  @param block A block index from getBlock.
+   *  @return The maximum term frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockMaxTf (int block) throws IOException {
+    return this.invertedList.getBlockMaxTf (block);
+  }
+
+  /**
+   *  Get the length of the field in the shortest document in a block.
+   *  @param block A block index from getBlock.
+   *  @return The minimum field length.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getBlockMinFieldLength (int block) throws IOException {
+    return this.invertedList.getBlockMinFieldLength (block);
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -158,6 +268,17 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Use an inverted list that was already produced by another copy
+   *  of this query operator, e.g., by the same query in another
+   *  thread.  initialize will not evaluate the operator again.  The
+   *  list is only read, so it may be shared.
+   *  @param list The inverted list.
+   */
+  public void setInvertedList (InvList list) {
+    this.invertedList = list;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -173,16 +294,38 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    //  An operator whose inverted list was supplied by setInvertedList
+    //  or found in the derived inverted list cache doesn't need its
+    //  arguments.  The canonical query string includes the operator,
+    //  its distance, and its arguments' terms and fields, so it
+    //  determines the inverted list.
 
-    for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
-      //System.out.println("Initialized: "+ q_i.toString());
+    LruCache<QryIopTerm.TermKey, InvList> c = QryIop.derivedCache;
+    QryIopTerm.TermKey key = null;
+
+    if ((this.invertedList == null) && (c != null) &&
+        ! (this instanceof QryIopTerm)) {
+      key = new QryIopTerm.TermKey (Idx.INDEXREADER, this.field, this.toCanonicalString ());
+      this.invertedList = c.get (key);
     }
-    //System.out.println("Successfully initialized!");
-    //  Evaluate the operator.
+
+    if (this.invertedList == null) {
+
+      //  Initialize the query arguments (if any).
+
+      for (Qry q_i: this.args) {
+        ((QryIop) q_i).initialize (r);
+        //System.out.println("Initialized: "+ q_i.toString());
+      }
+      //System.out.println("Successfully initialized!");
+      //  Evaluate the operator.
     
-    this.evaluate ();
+      this.evaluate ();
+
+      if (key != null) {
+        c.put (key, this.invertedList);
+      }
+    }
 
     //  Initialize the internal iterators.
 
@@ -204,11 +347,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -219,7 +362,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -230,8 +373,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -1,8 +1,21 @@
 import java.io.*;
 import java.util.*;
+
+/**
+ *  The NEAR/n operator for all retrieval models.  The arguments must
+ *  occur in order, each at most n positions after the previous one.
+ *  A match is recorded at the position of the last argument, and the
+ *  positions of a match are not used by later matches.
+ */
 public class QryIopNear extends QryIop {
     private int dist;
 
+    //  The positions of the posting that evaluate is building.  The
+    //  buffer is reused for each document.
+
+    private int[] positions = new int[16];
+    private int tf;
+
     public QryIopNear(int dist) {
         this.dist = dist;
         //System.out.println("Required distance "+ dist);
@@ -20,7 +33,6 @@ public class QryIopNear extends QryIop {
      */
 
     protected void evaluate () throws IOException {
-        //System.out.println("Entering evaluate function ");
         //  Create an empty inverted list.  If there are no query arguments,
         //  this is the final result.
         this.invertedList = new InvList (this.getField());
@@ -31,7 +43,6 @@ public class QryIopNear extends QryIop {
 
         while (q_0.docIteratorHasMatch(null)){
             boolean matchFound = true;
-            List<Integer> positions = new ArrayList<Integer>();
             int docID = q_0.docIteratorGetMatch();
             for (int i = 1; i < this.args.size(); i++){
                 QryIop q_i = (QryIop)this.args.get(i);
@@ -44,35 +55,74 @@ public class QryIopNear extends QryIop {
             }
             //if find same document
             if (matchFound){
-                Vector<Integer> firstLoc = q_0.docIteratorGetMatchPosting().positions;
-                while (firstLoc.size()>0){
-                    boolean nearFound = true;
-                    int curr = firstLoc.remove(0);
-                    for (int i=1; i<this.args.size(); i++){
-                        QryIop q_i = (QryIop)this.args.get(i);
-                        q_i.locIteratorAdvancePast(curr);
-                        if (!(q_i.locIteratorHasMatch()&&(q_i.locIteratorGetMatch()-curr)<=this.dist)){
-                            nearFound =false;
-                            break;
-                        }
-                        curr = q_i.locIteratorGetMatch();
-                    }
+                this.tf = 0;
+                this.findMatches();
+                if (this.tf != 0) this.invertedList.appendPosting(docID, this.positions, this.tf);
+                for (Qry q : this.args) ((QryIop) q).docIteratorAdvancePast(docID);//Increment all doc iterators
+            } else q_0.docIteratorAdvancePast(docID);
+        }
+    }
 
-                    //if match
-                    if (nearFound) {//if match
-                        //Record match
-                        positions.add(curr);
-                        for (Qry q: this.args){//Increment all loc iterators
-                            ((QryIop)q).locIteratorAdvance();
-                            if (!((QryIop)q).locIteratorHasMatch()) firstLoc.clear();
-                        }
-                    }else{//if no match
-                        q_0.locIteratorAdvance();//Increment q0 loc iterator
+    /**
+     *  Find the matches in the document that all of the arguments'
+     *  document iterators point to.  Each location iterator only moves
+     *  forward, so the cost is linear in the sum of the arguments'
+     *  tfs.  The arguments' inverted lists are only read, so they may
+     *  be shared with other queries and threads.
+     */
+    private void findMatches() {
+
+        QryIop q_0 = (QryIop)this.args.get(0);
+
+        while (q_0.locIteratorHasMatch()) {
+
+            //  Look for each argument within dist of the previous one.
+
+            int curr = q_0.locIteratorGetMatch();
+            boolean nearFound = true;
+
+            for (int i = 1; i < this.args.size(); i++) {
+                QryIop q_i = (QryIop)this.args.get(i);
+                q_i.locIteratorAdvancePast(curr);
+
+                if (!q_i.locIteratorHasMatch()) {
+                    return;             // No later match is possible
+                }
+
+                if (q_i.locIteratorGetMatch() - curr > this.dist) {
+                    nearFound = false;
+                    break;
+                }
+
+                curr = q_i.locIteratorGetMatch();
+            }
+
+            if (nearFound) {
+
+                //  Record the match, and don't reuse its positions.
+
+                this.addPosition(curr);
+
+                for (Qry q : this.args) {
+                    ((QryIop)q).locIteratorAdvance();
+
+                    if (!((QryIop)q).locIteratorHasMatch()) {
+                        return;
                     }
                 }
-                if(positions.size()!=0) this.invertedList.appendPosting(docID, positions);
-                for (Qry q : this.args) ((QryIop) q).docIteratorAdvancePast(docID);//Increment all doc iterators
-            } else q_0.docIteratorAdvancePast(docID);
+            } else {
+                q_0.locIteratorAdvance();
+            }
+        }
+    }
+
+    /**
+     *  Add a position to the posting that evaluate is building.
+     */
+    private void addPosition(int position) {
+        if (this.tf == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, 2 * this.tf);
         }
+        this.positions[this.tf++] = position;
     }
 }
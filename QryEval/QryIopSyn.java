@@ -10,6 +10,15 @@ import java.util.*;
  */
 public class QryIopSyn extends QryIop {
 
+    //  Buffers that evaluate reuses for each document:  the merged
+    //  positions, and for each argument that matches the document,
+    //  its next position and how many of its positions are left.
+
+    private int[] positions = new int[16];
+    private QryIop[] matched = null;
+    private int[] heads = null;
+    private int[] cursors = null;
+
     /**
      *  Evaluate the query operator; the result is an internal inverted
      *  list that may be accessed via the internal iterators.
@@ -26,6 +35,10 @@ public class QryIopSyn extends QryIop {
             return;
         }
 
+        this.matched = new QryIop[this.args.size()];
+        this.heads = new int[this.args.size()];
+        this.cursors = new int[this.args.size()];
+
         //  Each pass of the loop adds 1 document to result inverted list
         //  until all of the argument inverted lists are depleted.
 
@@ -54,20 +67,72 @@ public class QryIopSyn extends QryIop {
             //  Note:  This implementation assumes that a location will not appear
             //  in two or more arguments.  #SYN (apple apple) would break it.
 
-            List<Integer> positions = new ArrayList<Integer>();
+            int numMatched = 0;
+            int tf = 0;
 
             for (Qry q_j : this.args) {
                 if (q_j.docIteratorHasMatch(null) &&
                         (q_j.docIteratorGetMatch() == minDocid)) {
-                    Vector<Integer> locations_i =
-                            ((QryIop) q_j).docIteratorGetMatchPosting().positions;
-                    positions.addAll(locations_i);
-                    q_j.docIteratorAdvancePast(minDocid);
+                    QryIop q_jIop = (QryIop) q_j;
+                    this.matched[numMatched] = q_jIop;
+                    this.cursors[numMatched] = 0;
+                    this.heads[numMatched] = q_jIop.docIteratorGetMatchPosition(0);
+                    tf += q_jIop.docIteratorGetMatchTf();
+                    numMatched++;
+                }
+            }
+
+            if (this.positions.length < tf) {
+                this.positions = new int[Math.max(tf, 2 * this.positions.length)];
+            }
+
+            this.mergePositions(numMatched, tf);
+            this.invertedList.appendPosting(minDocid, this.positions, tf);
+
+            for (int j = 0; j < numMatched; j++) {
+                this.matched[j].docIteratorAdvancePast(minDocid);
+            }
+        }
+    }
+
+    /**
+     *  Merge the sorted positions of the matched arguments into the
+     *  positions buffer.  Each argument's positions are already
+     *  sorted, so this is a k-way merge.  There are only a few
+     *  arguments, so the smallest next position is found by a linear
+     *  scan of their heads.
+     *  @param numMatched The number of matched arguments.
+     *  @param tf The total number of their positions.
+     */
+    private void mergePositions(int numMatched, int tf) {
+
+        if (numMatched == 1) {
+            for (int k = 0; k < tf; k++) {
+                this.positions[k] = this.matched[0].docIteratorGetMatchPosition(k);
+            }
+            return;
+        }
+
+        for (int k = 0; k < tf; k++) {
+            int best = -1;
+
+            for (int j = 0; j < numMatched; j++) {
+                if ((this.cursors[j] >= 0) &&
+                        ((best < 0) || (this.heads[j] < this.heads[best]))) {
+                    best = j;
                 }
             }
 
-            Collections.sort(positions);
-            this.invertedList.appendPosting(minDocid, positions);
+            this.positions[k] = this.heads[best];
+            this.cursors[best]++;
+
+            QryIop q_best = this.matched[best];
+
+            if (this.cursors[best] < q_best.docIteratorGetMatchTf()) {
+                this.heads[best] = q_best.docIteratorGetMatchPosition(this.cursors[best]);
+            } else {
+                this.cursors[best] = -1;        // Exhausted
+            }
         }
     }
 
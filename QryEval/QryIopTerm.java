@@ -4,18 +4,65 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is materialized when the
+ *  operator is initialized.  In streaming mode (see setStreaming) the
+ *  operator instead wraps Lucene's per-segment PostingsEnum objects
+ *  and reads docids and locations on demand, so docIteratorAdvanceTo
+ *  can use Lucene's skip data to jump over most of a long inverted
+ *  list.  df and ctf come from the index statistics, so parent
+ *  operators see the same values in either mode.
+ *  </p>
+ *  <p>
+ *  Materialized inverted lists can be kept in a process-wide cache
+ *  (see setCacheSize), so that a term that occurs in several queries
+ *  is read from Lucene once.  Cached lists are shared, so they are
+ *  only read.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Whether term operators stream postings from Lucene instead of
+   *  materializing an InvList.
+   */
+  private static boolean streaming = false;
+
+  /**
+   *  Materialized inverted lists, keyed by index, field, and term, or
+   *  null if they aren't cached.
+   */
+  private static LruCache<TermKey, InvList> cache = null;
+
   private String term;
 
+  //  Streaming state.  leaves and postings are parallel arrays; a
+  //  null PostingsEnum means that the segment doesn't contain the term.
+
+  private List<LeafReaderContext> leaves = null;
+  private PostingsEnum[] postings = null;
+  private int leafIndex = 0;
+  private int streamDocid = Qry.INVALID_DOCID;
+  private int streamDf = 0;
+  private int streamCtf = 0;
+  private int[] streamPositions = new int[16];
+  private int streamPositionsLoaded = 0;
+  private int streamLocIndex = 0;
+
+  //  --------------- Methods ---------------------------------------
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,20 +82,409 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Enable or disable streaming mode for term operators that are
+   *  initialized after this call.
+   *  @param b True if postings should be streamed from Lucene.
+   */
+  public static void setStreaming (boolean b) {
+    QryIopTerm.streaming = b;
+  }
+
+  /**
+   *  Returns true if term operators stream their postings from Lucene.
+   *  @return True if streaming is enabled.
+   */
+  public static boolean isStreamingEnabled () {
+    return QryIopTerm.streaming;
+  }
+
+  /**
+   *  Cache materialized inverted lists across queries, in a cache
+   *  that evicts the least recently used lists to stay within a
+   *  memory budget.
+   *  @param bytes The size of the cache, or 0 to disable it.
+   */
+  public static void setCacheSize (long bytes) {
+    QryIopTerm.cache = (bytes > 0) ?
+      new LruCache<TermKey, InvList> ("InvList cache", bytes, InvList::sizeInBytes) :
+      null;
+  }
+
+  /**
+   *  Get the inverted list cache, e.g., to report its statistics.
+   *  @return The cache, or null if inverted lists aren't cached.
+   */
+  public static LruCache<TermKey, InvList> getCache () {
+    return QryIopTerm.cache;
+  }
+
+  /**
+   *  Returns true if this operator streams its postings from Lucene.
+   *  @return True if this operator is in streaming mode.
+   */
+  public boolean isStreaming () {
+    return (this.postings != null);
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    if (QryIopTerm.streaming) {
+      this.openStream ();
+    } else if (QryIopTerm.cache != null) {
+      LruCache<TermKey, InvList> c = QryIopTerm.cache;
+      TermKey key = new TermKey (Idx.INDEXREADER, this.field, this.term);
+      InvList list = c.get (key);
+
+      if (list == null) {
+        list = new InvList(this.term, this.field);
+        c.put (key, list);
+      }
+
+      this.invertedList = list;
+    } else {
+      this.invertedList = new InvList(this.term, this.field);
+    }
+  }
+
+  /**
+   *  Prepare the per-segment PostingsEnum objects for streaming and
+   *  position the iterator on the first posting.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void openStream () throws IOException {
+
+    Term t = new Term (this.field, new BytesRef (this.term));
+
+    this.streamDf = Idx.INDEXREADER.docFreq (t);
+    this.streamCtf = (int) Math.max (0, Idx.INDEXREADER.totalTermFreq (t));
+    this.leaves = Idx.INDEXREADER.leaves ();
+    this.postings = new PostingsEnum[this.leaves.size()];
+
+    if (this.streamDf > 0) {
+      for (int i = 0; i < this.leaves.size(); i++) {
+        this.postings[i] =
+          this.leaves.get(i).reader().postings (t, PostingsEnum.POSITIONS);
+      }
+    }
+
+    this.leafIndex = 0;
+    this.streamDocid = Qry.INVALID_DOCID;
+    this.streamAdvance (0);
+  }
+
+  /**
+   *  Move the stream to the first posting whose docid is at least
+   *  docid.  Lucene's advance requires a target beyond the current
+   *  document, so the caller must check that first.
+   *  @param docid An internal document id.
+   */
+  private void streamAdvance (int docid) {
+
+    try {
+      while (this.leafIndex < this.leaves.size()) {
+        LeafReaderContext leaf = this.leaves.get(this.leafIndex);
+        PostingsEnum p = this.postings[this.leafIndex];
+
+        if ((p != null) &&
+            (docid < leaf.docBase + leaf.reader().maxDoc())) {
+          int target = Math.max (0, docid - leaf.docBase);
+          int d = (p.docID() < target) ? p.advance (target) : p.docID();
+
+          if (d != DocIdSetIterator.NO_MORE_DOCS) {
+            this.streamDocid = leaf.docBase + d;
+            this.streamPositionsLoaded = 0;
+            this.streamLocIndex = 0;
+            return;
+          }
+        }
+
+        this.leafIndex ++;
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+
+    this.streamDocid = Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Make sure that the first n locations of the current document
+   *  have been read from Lucene.  Lucene only reads locations
+   *  sequentially, so they are buffered.
+   *  @param n The number of locations that are needed.
+   */
+  private void streamLoadPositions (int n) {
+
+    try {
+      PostingsEnum p = this.postings[this.leafIndex];
+
+      if (n > this.streamPositions.length) {
+        this.streamPositions =
+          Arrays.copyOf (this.streamPositions,
+                         Math.max (n, 2 * this.streamPositions.length));
+      }
+
+      while (this.streamPositionsLoaded < n) {
+        this.streamPositions[this.streamPositionsLoaded++] = p.nextPosition ();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading positions for " + this, ex);
+    }
+  }
+
+  /**
+   *  Get the term frequency of the current document in the stream.
+   *  @return The term frequency.
+   */
+  private int streamTf () {
+    try {
+      return this.postings[this.leafIndex].freq ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+  }
+
+  //  The iterator methods below read from the stream in streaming
+  //  mode, and from the materialized inverted list otherwise.
+
+  public void docIteratorAdvancePast (int docid) {
+    if (! this.isStreaming ()) {
+      super.docIteratorAdvancePast (docid);
+    } else if ((this.streamDocid != Qry.INVALID_DOCID) &&
+               (this.streamDocid <= docid)) {
+      this.streamAdvance (docid + 1);
+    }
+  }
+
+  public void docIteratorAdvanceTo (int docid) {
+    if (! this.isStreaming ()) {
+      super.docIteratorAdvanceTo (docid);
+    } else if ((this.streamDocid != Qry.INVALID_DOCID) &&
+               (this.streamDocid < docid)) {
+      this.streamAdvance (docid);
+    }
+  }
+
+  public void docIteratorFinish () {
+    if (! this.isStreaming ()) {
+      super.docIteratorFinish ();
+    } else {
+      this.leafIndex = this.leaves.size();
+      this.streamDocid = Qry.INVALID_DOCID;
+    }
+  }
+
+  public int docIteratorGetMatch () {
+    if (! this.isStreaming ()) {
+      return super.docIteratorGetMatch ();
+    } else {
+      return this.streamDocid;
+    }
+  }
+
+  public int docIteratorGetMatchPosition (int i) {
+    if (! this.isStreaming ()) {
+      return super.docIteratorGetMatchPosition (i);
+    } else {
+      this.streamLoadPositions (i + 1);
+      return this.streamPositions[i];
+    }
+  }
+
+  public int docIteratorGetMatchTf () {
+    if (! this.isStreaming ()) {
+      return super.docIteratorGetMatchTf ();
+    } else {
+      return this.streamTf ();
+    }
+  }
+
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (! this.isStreaming ()) {
+      return super.docIteratorHasMatch (r);
+    } else {
+      return (this.streamDocid != Qry.INVALID_DOCID);
+    }
+  }
+
+  public int getCtf () {
+    if (! this.isStreaming ()) {
+      return super.getCtf ();
+    } else {
+      return this.streamCtf;
+    }
+  }
+
+  public int getDf () {
+    if (! this.isStreaming ()) {
+      return super.getDf ();
+    } else {
+      return this.streamDf;
+    }
+  }
+
+  //  A stream doesn't know its maximum tf or minimum document length
+  //  without reading all of it, so it reports the loosest bounds, and
+  //  the rest of the stream is treated as one block.
+
+  public int getBlock (int docid) {
+    if (! this.isStreaming ()) {
+      return super.getBlock (docid);
+    } else {
+      return (this.streamDocid != Qry.INVALID_DOCID) ? 0 : -1;
+    }
+  }
+
+  public int getBlockLastDocid (int block) {
+    if (! this.isStreaming ()) {
+      return super.getBlockLastDocid (block);
+    } else {
+      return Integer.MAX_VALUE;
+    }
+  }
+
+  public int getBlockMaxTf (int block) throws IOException {
+    if (! this.isStreaming ()) {
+      return super.getBlockMaxTf (block);
+    } else {
+      return Integer.MAX_VALUE;
+    }
+  }
+
+  public long getBlockMinFieldLength (int block) throws IOException {
+    if (! this.isStreaming ()) {
+      return super.getBlockMinFieldLength (block);
+    } else {
+      return 0;
+    }
+  }
+
+  public int getMaxTf () {
+    if (! this.isStreaming ()) {
+      return super.getMaxTf ();
+    } else {
+      return Integer.MAX_VALUE;
+    }
+  }
+
+  public long getMinFieldLength () throws IOException {
+    if (! this.isStreaming ()) {
+      return super.getMinFieldLength ();
+    } else {
+      return 0;
+    }
+  }
+
+  public void locIteratorAdvance () {
+    if (! this.isStreaming ()) {
+      super.locIteratorAdvance ();
+    } else {
+      this.streamLocIndex ++;
+    }
+  }
+
+  public void locIteratorAdvancePast (int loc) {
+    if (! this.isStreaming ()) {
+      super.locIteratorAdvancePast (loc);
+    } else {
+      int tf = this.streamTf ();
+
+      while ((this.streamLocIndex < tf) &&
+             (this.docIteratorGetMatchPosition (this.streamLocIndex) <= loc)) {
+        this.streamLocIndex ++;
+      }
+    }
+  }
+
+  public void locIteratorFinish () {
+    if (! this.isStreaming ()) {
+      super.locIteratorFinish ();
+    } else {
+      this.streamLocIndex = this.streamTf ();
+    }
+  }
+
+  public int locIteratorGetMatch () {
+    if (! this.isStreaming ()) {
+      return super.locIteratorGetMatch ();
+    } else {
+      return this.docIteratorGetMatchPosition (this.streamLocIndex);
+    }
+  }
+
+  public boolean locIteratorHasMatch () {
+    if (! this.isStreaming ()) {
+      return super.locIteratorHasMatch ();
+    } else {
+      return (this.streamLocIndex < this.streamTf ());
+    }
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The term string.
+   */
+  public String getTerm () {
+    return this.term;
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
     return (this.term + "." + this.field);
   }
+
+  /**
+   *  Get a canonical string version of this query operator.  Terms
+   *  and fields are already normalized, so it is the same as toString.
+   *  @return The canonical string version of this query operator.
+   */
+  public String toCanonicalString () {
+    return this.toString ();
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The key of a cached inverted list.  The index is compared by
+   *  identity, so lists from different indexes are never confused.
+   *  Derived inverted lists (see QryIop.setDerivedCacheSize) use the
+   *  operator's canonical query string as the term.
+   */
+  static class TermKey {
+    private final IndexReader reader;
+    private final String field;
+    private final String term;
+
+    TermKey (IndexReader reader, String field, String term) {
+      this.reader = reader;
+      this.field = field;
+      this.term = term;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+      if (! (o instanceof TermKey)) {
+        return false;
+      }
+
+      TermKey k = (TermKey) o;
+      return (this.reader == k.reader) &&
+        this.field.equals (k.field) &&
+        this.term.equals (k.term);
+    }
+
+    @Override
+    public int hashCode () {
+      return (System.identityHashCode (this.reader) * 31 +
+              this.field.hashCode ()) * 31 + this.term.hashCode ();
+    }
+  }
 }
@@ -1,9 +1,30 @@
 import java.io.IOException;
 import java.util.*;
 
+/**
+ *  The WINDOW/n operator for all retrieval models.  The arguments may
+ *  occur in any order, and a match is a window of fewer than n
+ *  positions that contains one position of each argument.  A match is
+ *  recorded at the window's last position, and the positions of a
+ *  match are not used by later matches.
+ */
 public class QryIopWindow extends QryIop {
     private int dist;
 
+    //  The positions of the posting that evaluate is building.  The
+    //  buffer is reused for each document.
+
+    private int[] positions = new int[16];
+    private int tf;
+
+    //  The sweep state, which is reused for each document:  the
+    //  arguments, their current locations, and a min-heap of argument
+    //  indexes ordered by location (ties by index).
+
+    private QryIop[] iops;
+    private int[] locs;
+    private int[] heap;
+
     public QryIopWindow(int dist) {
         this.dist = dist;
         //System.out.println("Required distance "+ dist);
@@ -21,21 +42,28 @@ public class QryIopWindow extends QryIop {
      */
 
     protected void evaluate () throws IOException {
-        //System.out.println("Entering evaluate function ");
         //  Create an empty inverted list.  If there are no query arguments,
         //  this is the final result.
         this.invertedList = new InvList (this.getField());
 
         if (args.size () < 2) return;
 
-        QryIop q_0 = (QryIop)this.args.get(0);
+        int n = this.args.size();
+        this.iops = new QryIop[n];
+        this.locs = new int[n];
+        this.heap = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            this.iops[i] = (QryIop) this.args.get(i);
+        }
+
+        QryIop q_0 = this.iops[0];
 
         while (q_0.docIteratorHasMatch(null)){
             boolean matchFound = true;
-            List<Integer> positions = new ArrayList<Integer>();
             int docID = q_0.docIteratorGetMatch();
-            for (int i = 1; i < this.args.size(); i++){
-                QryIop q_i = (QryIop)this.args.get(i);
+            for (int i = 1; i < n; i++){
+                QryIop q_i = this.iops[i];
                 q_i.docIteratorAdvanceTo(docID);
                 if (!(q_i.docIteratorHasMatch(null)
                         &&q_i.docIteratorGetMatch()==docID)){
@@ -45,55 +73,148 @@ public class QryIopWindow extends QryIop {
             }
             //if find same document
             if (matchFound){
-                boolean flag = true;
-                while (flag){
-                    //create a hashmap to store all the query and their current location
-                    Map<QryIop,Integer> map = new HashMap<>();
-                    for (Qry q:this.args){
-                        QryIop q_i = (QryIop)q;
-                        if (!q_i.locIteratorHasMatch()){
-                            flag = false;
-                            break;
-                        } else map.put(q_i,q_i.locIteratorGetMatch());
-                    }
-                    //if the size of the map matches the size of args
-                    //then it suggests that none of the iterator is exhausted
-                    if (map.size()==this.args.size()){
-                        //find the minimum location
-                        int min = Collections.min(map.values());
-                        //find the maximum location
-                        int max = Collections.max(map.values());
-                        //check if the window restriction satisfied
-                        if (max-min<dist){//if satisfied
-                            //record match
-                            positions.add(max);
-                            for (Qry q: this.args){
-                                //advance all the location iterator
-                                ((QryIop)q).locIteratorAdvance();
-                                //if one of the location iterator is exhausted
-                                //set flag to false to end loop
-                                if (!((QryIop)q).locIteratorHasMatch()) {
-                                    flag = false;
-                                    break;
-                                }
-                            }
-                        }else{
-                            //find the query that has the minimum location
-                            for (QryIop q: map.keySet()){
-                                if (map.get(q)==min){
-                                    //advance this iterator and continue
-                                    q.locIteratorAdvance();
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                }
-
-                if(positions.size()!=0) this.invertedList.appendPosting(docID, positions);
+                this.tf = 0;
+                this.findMatches();
+                if (this.tf != 0) this.invertedList.appendPosting(docID, this.positions, this.tf);
                 for (Qry q : this.args) ((QryIop) q).docIteratorAdvancePast(docID);//Increment all doc iterators
             } else q_0.docIteratorAdvancePast(docID);
         }
     }
-}
 
+    /**
+     *  Find the matches in the document that all of the arguments'
+     *  document iterators point to.  The window spans the smallest
+     *  and the largest current location.  The smallest is the top of
+     *  the heap, and the largest is kept as a running maximum, because
+     *  locations only increase.  If the window is too wide, the
+     *  argument with the smallest location advances; if it matches,
+     *  every argument advances.  Nothing is allocated per step.
+     */
+    private void findMatches() {
+
+        int n = this.iops.length;
+
+        if (!this.loadLocations()) {
+            return;
+        }
+
+        int max = this.maxLocation();
+
+        while (true) {
+            int top = this.heap[0];
+
+            if (max - this.locs[top] < this.dist) {
+
+                //  Record the match, and don't reuse its positions.
+
+                this.addPosition(max);
+
+                for (int i = 0; i < n; i++) {
+                    this.iops[i].locIteratorAdvance();
+                }
+
+                if (!this.loadLocations()) {
+                    return;
+                }
+
+                max = this.maxLocation();
+            } else {
+                QryIop q_top = this.iops[top];
+                q_top.locIteratorAdvance();
+
+                if (!q_top.locIteratorHasMatch()) {
+                    return;
+                }
+
+                this.locs[top] = q_top.locIteratorGetMatch();
+                max = Math.max(max, this.locs[top]);
+                this.siftDown(0);
+            }
+        }
+    }
+
+    /**
+     *  Read every argument's current location and rebuild the heap.
+     *  @return False if an argument has no more locations.
+     */
+    private boolean loadLocations() {
+
+        int n = this.iops.length;
+
+        for (int i = 0; i < n; i++) {
+            if (!this.iops[i].locIteratorHasMatch()) {
+                return false;
+            }
+
+            this.locs[i] = this.iops[i].locIteratorGetMatch();
+            this.heap[i] = i;
+        }
+
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            this.siftDown(i);
+        }
+
+        return true;
+    }
+
+    /**
+     *  The largest current location.
+     */
+    private int maxLocation() {
+        int max = this.locs[0];
+
+        for (int i = 1; i < this.locs.length; i++) {
+            max = Math.max(max, this.locs[i]);
+        }
+
+        return max;
+    }
+
+    /**
+     *  Restore the heap property below heap[i].
+     */
+    private void siftDown(int i) {
+
+        int n = this.heap.length;
+        int a = this.heap[i];
+
+        while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= n) {
+                break;
+            }
+
+            if ((child + 1 < n) && this.before(this.heap[child + 1], this.heap[child])) {
+                child++;
+            }
+
+            if (!this.before(this.heap[child], a)) {
+                break;
+            }
+
+            this.heap[i] = this.heap[child];
+            i = child;
+        }
+
+        this.heap[i] = a;
+    }
+
+    /**
+     *  Returns true if argument a is ahead of argument b in the heap.
+     */
+    private boolean before(int a, int b) {
+        return (this.locs[a] < this.locs[b]) ||
+               ((this.locs[a] == this.locs[b]) && (a < b));
+    }
+
+    /**
+     *  Add a position to the posting that evaluate is building.
+     */
+    private void addPosition(int position) {
+        if (this.tf == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, 2 * this.tf);
+        }
+        this.positions[this.tf++] = position;
+    }
+}
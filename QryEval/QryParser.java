@@ -37,6 +37,10 @@ public class QryParser {
 
     //  --------------- Constants and variables ---------------------
 
+    //  The analyzer is configured once, below.  Lucene analyzers keep
+    //  a reusable token stream for each thread, so tokenizeString may
+    //  be called by several threads at once.
+
     private static final EnglishAnalyzerConfigurable ANALYZER =
             new EnglishAnalyzerConfigurable();
 
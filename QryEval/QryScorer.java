@@ -0,0 +1,325 @@
+import java.io.*;
+
+/**
+ *  A scorer for a query tree that is specialized ("compiled") for one
+ *  retrieval model.  QrySop.getScore checks the type of the retrieval
+ *  model and reads its parameters for every document; a scorer is
+ *  built once per query, after the query is initialized, and keeps
+ *  the model parameters and document-independent values in final
+ *  fields.  Each scorer class handles one operator and one model, so
+ *  the per-document calls are easy for the JIT to inline.
+ *  <p>
+ *  The query tree still finds the matching documents; the scorer only
+ *  replaces getScore for the document that the tree matched.  Scores
+ *  are computed with the same expressions, in the same order, as the
+ *  query operators compute them.  QrySop.getScorer returns null for
+ *  operators and models that don't have a scorer, and then the query
+ *  is scored by getScore.
+ *  </p>
+ */
+public abstract class QryScorer {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static volatile boolean enabled = true;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Use compiled scorers (the default) or getScore.
+     *  @param enable True to use compiled scorers.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     *  Returns true if compiled scorers are used.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     *  Get a scorer for an initialized query, or null if the query or
+     *  one of its arguments doesn't have one for this retrieval model.
+     *  @param q An initialized query.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The scorer, or null.
+     */
+    public static QryScorer compile(QrySop q, RetrievalModel r) {
+        return enabled ? q.getScorer(r) : null;
+    }
+
+    /**
+     *  Compile the arguments of a query operator.
+     *  @param q A query operator.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return A scorer for each argument, or null if an argument
+     *  doesn't have one.
+     */
+    static QryScorer[] compileArgs(Qry q, RetrievalModel r) {
+        QryScorer[] scorers = new QryScorer[q.args.size()];
+
+        for (int i = 0; i < scorers.length; i++) {
+            Qry q_i = q.args.get(i);
+
+            if (!(q_i instanceof QrySop)) {
+                return null;
+            }
+
+            scorers[i] = ((QrySop) q_i).getScorer(r);
+
+            if (scorers[i] == null) {
+                return null;
+            }
+        }
+
+        return scorers;
+    }
+
+    /**
+     *  Get the score of the document that the query matched.
+     *  @param docid The document.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public abstract double score(int docid) throws IOException;
+
+    /**
+     *  Get the log of the score of the document that the query matched.
+     *  @param docid The document.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double logScore(int docid) throws IOException {
+        return Math.log(this.score(docid));
+    }
+
+    /**
+     *  Get the log of the default score of a document that the query
+     *  doesn't match.
+     *  @param docid The document.
+     *  @return The log of the default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double logDefaultScore(int docid) throws IOException {
+        throw new IllegalStateException(this.getClass().getName() + " doesn't have a default score.");
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  #SCORE for BM25.
+     */
+    static final class BM25Term extends QryScorer {
+
+        private final QryIop iop;
+        private final String field;
+        private final double idf;
+        private final double k_1;
+        private final double b;
+        private final double avgDoclen;
+
+        BM25Term(QryIop iop, double idf, RetrievalModelBM25 r, double avgDoclen) {
+            this.iop = iop;
+            this.field = iop.getField();
+            this.idf = idf;
+            this.k_1 = r.getK_1();
+            this.b = r.getB();
+            this.avgDoclen = avgDoclen;
+        }
+
+        @Override
+        public double score(int docid) throws IOException {
+            double tf = this.iop.docIteratorGetMatchTf();
+            double doclen = Idx.getFieldLength(this.field, docid);
+            return this.score(tf, doclen);
+        }
+
+        /**
+         *  The score of a document that contains the term.
+         *  @param tf The term frequency.
+         *  @param doclen The length of the field.
+         *  @return The score.
+         */
+        double score(double tf, double doclen) {
+            return this.idf * tf / (tf + this.k_1 * (1 - this.b + this.b * (doclen / this.avgDoclen)));
+        }
+
+        /**
+         *  The inverted list of the term, or null if it isn't
+         *  materialized (e.g., streaming postings).
+         */
+        InvList getInvertedList() {
+            return this.iop.invertedList;
+        }
+
+        String getField() {
+            return this.field;
+        }
+    }
+
+    /**
+     *  #SUM for BM25.  Each argument that matches the document adds its
+     *  score times the user weight (k_3 + 1) qtf / (k_3 + qtf), with qtf 1.
+     */
+    static final class BM25Sum extends QryScorer {
+
+        private final Qry[] args;
+        private final QryScorer[] scorers;
+        private final RetrievalModel r;
+        private final double k_3;
+
+        BM25Sum(Qry q, QryScorer[] scorers, RetrievalModelBM25 r) {
+            this.args = q.args.toArray(new Qry[0]);
+            this.scorers = scorers;
+            this.r = r;
+            this.k_3 = r.getK_3();
+        }
+
+        @Override
+        public double score(int docid) throws IOException {
+            double sum = 0;
+
+            for (int i = 0; i < this.args.length; i++) {
+                Qry q_i = this.args[i];
+
+                if (q_i.docIteratorHasMatch(this.r) && (q_i.docIteratorGetMatch() == docid)) {
+                    sum += this.scorers[i].score(docid) * (this.k_3 + 1) * 1 / (this.k_3 + 1);
+                }
+            }
+
+            return sum;
+        }
+    }
+
+    /**
+     *  #SCORE for Indri.
+     */
+    static final class IndriTerm extends QryScorer {
+
+        private final QryIop iop;
+        private final String field;
+        private final double mu;
+        private final double oneMinusLambda;
+        private final double muPmle;
+        private final double lambdaPmle;
+        private final double defaultNumerator;
+        private final double defaultLambdaPmle;
+
+        IndriTerm(QryIop iop, RetrievalModelIndri r, double muPmle, double lambdaPmle,
+                  double defaultNumerator, double defaultLambdaPmle) {
+            this.iop = iop;
+            this.field = iop.getField();
+            this.mu = r.getMu();
+            this.oneMinusLambda = 1 - r.getLambda();
+            this.muPmle = muPmle;
+            this.lambdaPmle = lambdaPmle;
+            this.defaultNumerator = defaultNumerator;
+            this.defaultLambdaPmle = defaultLambdaPmle;
+        }
+
+        @Override
+        public double score(int docid) throws IOException {
+            double tf = this.iop.docIteratorGetMatchTf();
+            double doclen = Idx.getFieldLength(this.field, docid);
+            return this.score(tf, doclen);
+        }
+
+        @Override
+        public double logDefaultScore(int docid) throws IOException {
+            double doclen = Idx.getFieldLength(this.field, docid);
+            return Math.log(this.defaultScore(doclen));
+        }
+
+        /**
+         *  The score of a document that contains the term.
+         *  @param tf The term frequency.
+         *  @param doclen The length of the field.
+         *  @return The score.
+         */
+        double score(double tf, double doclen) {
+            return this.oneMinusLambda * (tf + this.muPmle) / (doclen + this.mu) + this.lambdaPmle;
+        }
+
+        /**
+         *  The score of a document that doesn't contain the term.
+         *  @param doclen The length of the field.
+         *  @return The score.
+         */
+        double defaultScore(double doclen) {
+            return this.defaultNumerator / (doclen + this.mu) + this.defaultLambdaPmle;
+        }
+
+        /**
+         *  The inverted list of the term, or null if it isn't
+         *  materialized (e.g., streaming postings).
+         */
+        InvList getInvertedList() {
+            return this.iop.invertedList;
+        }
+
+        String getField() {
+            return this.field;
+        }
+    }
+
+    /**
+     *  #AND and #WAND for Indri:  a weighted geometric mean, computed in
+     *  log space (see QrySop.getLogScoreWeighted).
+     */
+    static final class IndriWeightedAnd extends QryScorer {
+
+        private final Qry[] args;
+        private final QryScorer[] scorers;
+        private final double[] weights;
+        private final RetrievalModel r;
+
+        IndriWeightedAnd(Qry q, QryScorer[] scorers, double[] weights, RetrievalModelIndri r) {
+            this.args = q.args.toArray(new Qry[0]);
+            this.scorers = scorers;
+            this.weights = weights.clone();
+            this.r = r;
+        }
+
+        @Override
+        public double score(int docid) throws IOException {
+            return Math.exp(this.logScore(docid));
+        }
+
+        @Override
+        public double logScore(int docid) throws IOException {
+            double logScore = 0.0;
+
+            for (int i = 0; i < this.args.length; i++) {
+                if (this.weights[i] == 0) {
+                    continue;
+                }
+
+                Qry q_i = this.args[i];
+
+                if (q_i.docIteratorHasMatch(this.r) && (q_i.docIteratorGetMatch() == docid)) {
+                    logScore += this.weights[i] * this.scorers[i].logScore(docid);
+                } else {
+                    logScore += this.weights[i] * this.scorers[i].logDefaultScore(docid);
+                }
+            }
+
+            return logScore;
+        }
+
+        @Override
+        public double logDefaultScore(int docid) throws IOException {
+            double logScore = 0.0;
+
+            for (int i = 0; i < this.args.length; i++) {
+                if (this.weights[i] != 0) {
+                    logScore += this.weights[i] * this.scorers[i].logDefaultScore(docid);
+                }
+            }
+
+            return logScore;
+        }
+    }
+}
@@ -2,6 +2,7 @@
  *  Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 /**
  *  The root class of all query operators that use a retrieval model
@@ -14,6 +15,297 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The dynamic pruning strategy (the pruning= parameter):  "none"
+   *  scores every matching document, "wand" lets #SUM skip documents
+   *  whose BM25 score upper bound can't reach the top k, "bmw"
+   *  (block-max WAND) also uses upper bounds for blocks of postings,
+   *  and "maxscore" lets Indri #AND and #WAND skip documents whose
+   *  score upper bound can't reach the top k.
+   */
+  private static String pruning = "none";
+
+  /**
+   *  Slack for comparing score upper bounds to the top k threshold,
+   *  because bounds aren't computed in the same way as scores.
+   */
+  private static final double LOG_SCORE_SLACK = 1e-9;
+
+  //  Max-score state (see docIteratorHasMatchMaxScore):  for each
+  //  argument, its weight and the logs of its score upper bounds, and
+  //  the arguments in order of increasing potential score gain.
+
+  private double[] maxScoreWeights = null;
+  private double[] logMaxScores = null;
+  private double[] logMaxDefaultScores = null;
+  private int[] maxScoreOrder = null;
+
+  /**
+   *  The collector for the query's results, if this operator is the
+   *  root of the query.  Operators that support dynamic pruning use
+   *  its threshold to skip documents.
+   */
+  protected TopKCollector topK = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the dynamic pruning strategy for all queries.
+   *  @param p "none", "wand", "bmw", or "maxscore".
+   *  @throws IllegalArgumentException Unknown pruning strategy.
+   */
+  public static void setPruning (String p) throws IllegalArgumentException {
+    p = p.toLowerCase ();
+
+    if (! (p.equals ("none") || p.equals ("wand") || p.equals ("bmw") ||
+           p.equals ("maxscore"))) {
+      throw new IllegalArgumentException ("Unknown pruning strategy: " + p);
+    }
+
+    QrySop.pruning = p;
+
+    //  Block-max WAND needs the block bounds of each inverted list.
+
+    InvList.setBlockBounds (p.equals ("bmw"));
+  }
+
+  /**
+   *  Get the dynamic pruning strategy.
+   *  @return The pruning strategy.
+   */
+  public static String getPruning () {
+    return QrySop.pruning;
+  }
+
+  /**
+   *  Tell the root of a query where its results are collected, so
+   *  that it can skip documents that can't enter the results.
+   *  @param topK The collector for the query's results.
+   */
+  public void setTopKCollector (TopKCollector topK) {
+    this.topK = topK;
+  }
+
+  /**
+   *  Get an upper bound on the score of any document that this query
+   *  operator matches.  Operators that can't bound their scores
+   *  return positive infinity, which disables pruning.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the score of documents from docid through
+   *  getBlockLastDocid (docid).  The bound may be tighter than
+   *  getMaxScore because it only covers part of the docid space.  By
+   *  default the block is the rest of the docid space.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id at or after the current match.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getBlockMaxScore (RetrievalModel r, int docid) throws IOException {
+    return this.getMaxScore (r);
+  }
+
+  /**
+   *  Get the last docid covered by getBlockMaxScore (docid).
+   *  @param docid An internal document id at or after the current match.
+   *  @return The last docid of the block.
+   */
+  public int getBlockLastDocid (int docid) {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get an upper bound on the default score of any document.
+   *  Operators that can't bound their default scores return positive
+   *  infinity, which disables pruning.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxDefaultScore (RetrievalModel r) throws IOException {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  An instantiation of docIteratorHasMatch for operators whose
+   *  score is a weighted geometric mean of argument scores, i.e.,
+   *  the product of score_i ^ weight_i, where an argument that
+   *  doesn't match the document contributes its default score.  It
+   *  is like docIteratorHasMatchMin, but it skips documents whose
+   *  score upper bound can't reach the lowest score in the top k.
+   *  <p>
+   *  Each argument's score is at most max (getMaxScore,
+   *  getMaxDefaultScore), and its default score is at most
+   *  getMaxDefaultScore, so a document that matches a set of
+   *  arguments has a bound that doesn't require its length or any
+   *  Math.pow.  Arguments are ordered by how much a match can raise
+   *  the bound (MaxScore).  When the documents that only match a
+   *  prefix of that order can't reach the threshold, those
+   *  (non-essential) arguments don't produce candidates; they are
+   *  only advanced to candidates from the other arguments.  Bounds
+   *  are compared in log space.
+   *  </p>
+   *  @param r The retrieval model that determines what is a match
+   *  @param weights The weight of each argument.
+   *  @return True if the query matches, otherwise false.
+   */
+  protected boolean docIteratorHasMatchMaxScore (RetrievalModel r, double[] weights) {
+
+    double threshold = (this.topK == null) ?
+      Double.NEGATIVE_INFINITY : this.topK.threshold ();
+
+    if ((threshold == Double.NEGATIVE_INFINITY) ||
+        ! this.initializeMaxScores (r, weights)) {
+      return this.docIteratorHasMatchMin (r);
+    }
+
+    double logThreshold = Math.log (threshold) - LOG_SCORE_SLACK;
+
+    //  The bound of a document that matches no arguments, and the
+    //  number of non-essential arguments.
+
+    double base = 0;
+
+    for (int i = 0; i < this.args.size(); i++) {
+      base += this.maxScoreWeights[i] * this.logMaxDefaultScores[i];
+    }
+
+    int nonEssential = 0;
+    double bound = base;
+
+    while (nonEssential < this.args.size()) {
+      bound += this.gain (this.maxScoreOrder[nonEssential]);
+
+      if (bound >= logThreshold) {
+        break;
+      }
+
+      nonEssential ++;
+    }
+
+    while (true) {
+
+      //  The next candidate is the first docid of an essential argument.
+
+      int docid = Qry.INVALID_DOCID;
+
+      for (int j = nonEssential; j < this.args.size(); j++) {
+        Qry q_j = this.args.get (this.maxScoreOrder[j]);
+
+        if (q_j.docIteratorHasMatch (r)) {
+          int q_jDocid = q_j.docIteratorGetMatch ();
+
+          if ((docid == Qry.INVALID_DOCID) || (q_jDocid < docid)) {
+            docid = q_jDocid;
+          }
+        }
+      }
+
+      if (docid == Qry.INVALID_DOCID) {
+        return false;
+      }
+
+      //  The candidate's bound depends on which arguments match it.
+
+      bound = base;
+
+      for (int i = 0; i < this.args.size(); i++) {
+        Qry q_i = this.args.get (i);
+
+        q_i.docIteratorAdvanceTo (docid);
+
+        if (q_i.docIteratorHasMatch (r) &&
+            (q_i.docIteratorGetMatch () == docid)) {
+          bound += this.gain (i);
+        }
+      }
+
+      if (bound >= logThreshold) {
+        this.docIteratorSetMatchCache (docid);
+        return true;
+      }
+
+      for (int i = 0; i < this.args.size(); i++) {
+        this.args.get (i).docIteratorAdvancePast (docid);
+      }
+    }
+  }
+
+  /**
+   *  The most that a match for argument i can add to the log of the
+   *  score bound, compared to its default score.
+   */
+  private double gain (int i) {
+    return this.maxScoreWeights[i] *
+      (this.logMaxScores[i] - this.logMaxDefaultScores[i]);
+  }
+
+  /**
+   *  Get the score upper bounds of the arguments the first time that
+   *  they are needed.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param weights The weight of each argument.
+   *  @return False if pruning isn't possible, e.g., an argument has
+   *  no bound.
+   */
+  private boolean initializeMaxScores (RetrievalModel r, double[] weights) {
+
+    if (this.maxScoreOrder != null) {
+      return (this.maxScoreOrder.length > 0);
+    }
+
+    int n = this.args.size();
+    this.maxScoreWeights = weights.clone ();
+    this.logMaxScores = new double[n];
+    this.logMaxDefaultScores = new double[n];
+    this.maxScoreOrder = new int[0];
+
+    try {
+      for (int i = 0; i < n; i++) {
+        QrySop q_i = (QrySop) this.args.get (i);
+        double maxDefaultScore = q_i.getMaxDefaultScore (r);
+        double maxScore = Math.max (q_i.getMaxScore (r), maxDefaultScore);
+
+        if ((weights[i] < 0) ||
+            (maxScore == Double.POSITIVE_INFINITY) ||
+            (maxDefaultScore == Double.POSITIVE_INFINITY) ||
+            (maxDefaultScore <= 0)) {
+          return false;
+        }
+
+        this.logMaxScores[i] = Math.log (maxScore);
+        this.logMaxDefaultScores[i] = Math.log (maxDefaultScore);
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading document lengths for " + this, ex);
+    }
+
+    Integer[] order = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+
+    Arrays.sort (order, (i1, i2) -> Double.compare (this.gain (i1), this.gain (i2)));
+
+    this.maxScoreOrder = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      this.maxScoreOrder[i] = order[i];
+    }
+
+    return true;
+  }
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -26,6 +318,101 @@ public abstract class QrySop extends Qry {
   public abstract double getDefaultScore (RetrievalModel r,long docid)
     throws IOException;
 
+  /**
+   *  Get the log of the score for the document that
+   *  docIteratorHasMatch matched.  Indri operators that combine their
+   *  arguments' scores with a weighted geometric mean override this to
+   *  sum weighted logs, so that a tree of them is exponentiated once,
+   *  at its root, instead of calling Math.pow for each argument.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score for a document that the query
+   *  doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return Math.log (this.getDefaultScore (r, docid));
+  }
+
+  /**
+   *  Get a scorer that is specialized for this query and retrieval
+   *  model (see QryScorer).  The query must be initialized.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer, or null if there isn't one.
+   */
+  public QryScorer getScorer (RetrievalModel r) {
+    return null;
+  }
+
+  /**
+   *  The weighted sum of the arguments' log scores for the document
+   *  that docIteratorHasMatch matched.  Arguments that don't match the
+   *  document contribute their log default scores.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param weights The normalized weight of each argument.
+   *  @return The log of the weighted geometric mean of the scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected double getLogScoreWeighted (RetrievalModel r, double[] weights)
+    throws IOException {
+
+    if (! this.docIteratorHasMatchCache ()) {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    int docid = this.docIteratorGetMatch ();
+    double logScore = 0.0;
+
+    for (int i = 0; i < this.args.size(); i++) {
+      if (weights[i] == 0) {
+        continue;                       // Math.pow (score, 0) is 1
+      }
+
+      QrySop q_i = (QrySop) this.args.get (i);
+
+      if (q_i.docIteratorHasMatch (r) &&
+          (q_i.docIteratorGetMatch () == docid)) {
+        logScore += weights[i] * q_i.getLogScore (r);
+      } else {
+        logScore += weights[i] * q_i.getLogDefaultScore (r, docid);
+      }
+    }
+
+    return logScore;
+  }
+
+  /**
+   *  The weighted sum of the arguments' log default scores.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The document.
+   *  @param weights The normalized weight of each argument.
+   *  @return The log of the weighted geometric mean of the default scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected double getLogDefaultScoreWeighted (RetrievalModel r, long docid, double[] weights)
+    throws IOException {
+
+    double logScore = 0.0;
+
+    for (int i = 0; i < this.args.size(); i++) {
+      if (weights[i] != 0) {
+        logScore += weights[i] * ((QrySop) this.args.get (i)).getLogDefaultScore (r, docid);
+      }
+    }
+
+    return logScore;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -1,17 +1,26 @@
 
 import java.io.*;
+import java.util.*;
 
 /**
  *  The OR operator for all retrieval models.
  */
 public class QrySopAnd extends QrySop {
+
+    //  Indri:  Every argument has weight 1/n in the geometric mean.
+
+    private double[] indriWeights;
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
      *  @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch (RetrievalModel r) {
-        if (r instanceof RetrievalModelIndri) {
+        if ((r instanceof RetrievalModelIndri) &&
+                QrySop.getPruning().equals("maxscore")) {
+            return this.docIteratorHasMatchMaxScore(r, this.getWeights());
+        } else if (r instanceof RetrievalModelIndri) {
             return this.docIteratorHasMatchMin(r);
         } else {
             return this.docIteratorHasMatchAll(r);
@@ -40,10 +49,64 @@ public class QrySopAnd extends QrySop {
 
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-        double product=1;
-        for (Qry q_i : this.args)
-            product *= ((QrySop)q_i).getDefaultScore(r,docid);
-        return Math.pow(product,1.0/this.args.size());
+        return Math.exp(this.getLogDefaultScore(r, docid));
+    }
+
+    @Override
+    public QryScorer getScorer(RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            QryScorer[] scorers = QryScorer.compileArgs(this, r);
+            return (scorers == null) ? null :
+                    new QryScorer.IndriWeightedAnd(this, scorers, this.indriWeights, (RetrievalModelIndri) r);
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public double getLogScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            return this.getLogScoreWeighted(r, this.indriWeights);
+        } else {
+            return super.getLogScore(r);
+        }
+    }
+
+    @Override
+    public double getLogDefaultScore(RetrievalModel r, long docid) throws IOException {
+        return this.getLogDefaultScoreWeighted(r, docid, this.indriWeights);
+    }
+
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            double product=1;
+            for (Qry q_i : this.args)
+                product *= Math.max(((QrySop)q_i).getMaxScore(r),
+                                    ((QrySop)q_i).getMaxDefaultScore(r));
+            return Math.pow(product,1.0/this.args.size());
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    @Override
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            double product=1;
+            for (Qry q_i : this.args)
+                product *= ((QrySop)q_i).getMaxDefaultScore(r);
+            return Math.pow(product,1.0/this.args.size());
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     *  Every argument has the same weight in the geometric mean.
+     */
+    private double[] getWeights() {
+        return this.indriWeights;
     }
 
     /**
@@ -76,21 +139,28 @@ public class QrySopAnd extends QrySop {
         }
     }
 
+    /**
+     *  getScore for the Indri retrieval model.  The geometric mean is
+     *  computed in log space; nested operators use getLogScore, so
+     *  only the root of the query is exponentiated.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
     private double getScoreIndri (RetrievalModel r) throws IOException{
         if (! this.docIteratorHasMatchCache()) {
             return 0.0;
         } else {
-            double product=1;
-            for (Qry q_i : this.args){
-                if (q_i.docIteratorHasMatch(r)
-                        &&q_i.docIteratorGetMatch()==this.docIteratorGetMatch())
-                    product *= ((QrySop)q_i).getScore(r);
-                else
-                    product *= ((QrySop)q_i).getDefaultScore(r,this.docIteratorGetMatch());
-            }
-            return Math.pow(product,1.0/this.args.size());
+            return Math.exp(this.getLogScoreWeighted(r, this.indriWeights));
         }
     }
 
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.indriWeights = new double[this.args.size()];
+        Arrays.fill(this.indriWeights, 1.0 / this.args.size());
+    }
+
 
 }
@@ -13,8 +13,20 @@ public class QrySopScore extends QrySop {
 
     /**
      *  Document-independent values that should be determined just once.
-     *  Some retrieval models have these, some don't.
+     *  Some retrieval models have these, some don't.  They are set by
+     *  initialize.
      */
+    private CollectionStats stats;
+
+    //  BM25:  The term's idf.
+    private double idf;
+
+    //  Indri:  The smoothing terms that depend only on the term's ctf.
+    //  The default score uses a ctf of 0.5 if the term doesn't occur.
+    private double indriMuPmle;           // mu * (ctf / collen)
+    private double indriLambdaPmle;       // lambda * ctf / collen
+    private double indriDefaultNumerator; // (1 - lambda) * mu * (ctf / collen)
+    private double indriDefaultLambdaPmle;
 
     /**
      *  Indicates whether the query has a match.
@@ -50,13 +62,10 @@ public class QrySopScore extends QrySop {
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
         if (r instanceof RetrievalModelIndri) {
-            double lambda = ((RetrievalModelIndri) r).getLambda();
             double mu = ((RetrievalModelIndri) r).getMu();
             Qry q = this.args.get(0);
-            double ctf = ((QryIop) q).getCtf() == 0 ? 0.5 : ((QryIop) q).getCtf();
             double doclen = Idx.getFieldLength(((QryIop) q).getField(), (int) docid);
-            double collen = Idx.getSumOfFieldLengths(((QryIop) q).getField());
-            return (1 - lambda) * mu * (ctf / collen) / (doclen + mu) + lambda * ctf / collen;
+            return this.indriDefaultNumerator / (doclen + mu) + this.indriDefaultLambdaPmle;
         } else {
             throw new IllegalArgumentException
                     (r.getClass().getName() + " doesn't have a default score.");
@@ -64,6 +73,21 @@ public class QrySopScore extends QrySop {
 
     }
 
+    @Override
+    public QryScorer getScorer(RetrievalModel r) {
+        QryIop q = (QryIop) this.args.get(0);
+
+        if (r instanceof RetrievalModelBM25) {
+            return new QryScorer.BM25Term(q, this.idf, (RetrievalModelBM25) r, this.stats.avgFieldLength);
+        } else if (r instanceof RetrievalModelIndri) {
+            return new QryScorer.IndriTerm(q, (RetrievalModelIndri) r,
+                    this.indriMuPmle, this.indriLambdaPmle,
+                    this.indriDefaultNumerator, this.indriDefaultLambdaPmle);
+        } else {
+            return null;
+        }
+    }
+
     /**
      *  getScore for the Unranked retrieval model.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -90,7 +114,7 @@ public class QrySopScore extends QrySop {
         } else {
             //returning tf of the match from the inverted list of its only arg
             Qry q = this.args.get(0);
-            return ((QryIop) q).docIteratorGetMatchPosting().tf;
+            return ((QryIop) q).docIteratorGetMatchTf();
         }
     }
 
@@ -107,16 +131,107 @@ public class QrySopScore extends QrySop {
         } else {
             double b = ((RetrievalModelBM25) r).getB();
             double k_1 = ((RetrievalModelBM25) r).getK_1();
-            long N = Idx.getNumDocs();
             Qry q = this.args.get(0);
-            int df = ((QryIop) q).getDf();
-            double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
+            double tf = ((QryIop) q).docIteratorGetMatchTf();
             double doclen = Idx.getFieldLength(((QryIop) q).getField(), ((QryIop) q).docIteratorGetMatch());
-            double avg_doclen = 1.0 * Idx.getSumOfFieldLengths(((QryIop) q).getField()) / (double) Idx.getDocCount(((QryIop) q).getField());
-            return Math.max(0, Math.log(1.0 * (N - df + 0.5) / (df + 0.5))) * tf / (tf + k_1 * (1 - b + b * (doclen / avg_doclen)));
+            double avg_doclen = this.stats.avgFieldLength;
+            return this.idf * tf / (tf + k_1 * (1 - b + b * (doclen / avg_doclen)));
         }
     }
 
+    /**
+     *  Get an upper bound on the score of any document that matches
+     *  the term.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelBM25) {
+            QryIop q = (QryIop) this.args.get(0);
+            return this.getMaxScoreBM25(r, q.getMaxTf(), q.getMinFieldLength());
+        } else if (r instanceof RetrievalModelIndri) {
+            QryIop q = (QryIop) this.args.get(0);
+            double tf = q.getMaxTf();
+            if (tf == 0) {
+                return 0.0;             // The term doesn't match anything
+            }
+            double lambda = ((RetrievalModelIndri) r).getLambda();
+            double mu = ((RetrievalModelIndri) r).getMu();
+            double doclen = q.getMinFieldLength();
+            return (1 - lambda) * (tf + this.indriMuPmle) / (doclen + mu) + this.indriLambdaPmle;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     *  Get an upper bound on the default score of any document.  The
+     *  Indri default score shrinks with document length, so the bound
+     *  is the default score of an empty document.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            double mu = ((RetrievalModelIndri) r).getMu();
+            return this.indriDefaultNumerator / mu + this.indriDefaultLambdaPmle;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     *  Get an upper bound on the score of documents from docid through
+     *  the end of the block of postings that contains docid.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid An internal document id at or after the current match.
+     *  @return The upper bound.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getBlockMaxScore(RetrievalModel r, int docid) throws IOException {
+        if (r instanceof RetrievalModelBM25) {
+            QryIop q = (QryIop) this.args.get(0);
+            int block = q.getBlock(docid);
+            if (block < 0) {
+                return 0.0;             // No more matches
+            }
+            return this.getMaxScoreBM25(r, q.getBlockMaxTf(block), q.getBlockMinFieldLength(block));
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    @Override
+    public int getBlockLastDocid(int docid) {
+        QryIop q = (QryIop) this.args.get(0);
+        int block = q.getBlock(docid);
+        return (block < 0) ? Integer.MAX_VALUE : q.getBlockLastDocid(block);
+    }
+
+    /**
+     *  The BM25 score grows with tf and shrinks with document length,
+     *  so the score with the largest tf and the shortest document of a
+     *  set of postings bounds the score of each of them.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param maxTf The largest tf.
+     *  @param minDoclen The shortest document length.
+     *  @return The upper bound.
+     */
+    private double getMaxScoreBM25(RetrievalModel r, double maxTf, double minDoclen) {
+        if (maxTf == 0) {
+            return 0.0;                 // The term doesn't match anything
+        }
+        double b = ((RetrievalModelBM25) r).getB();
+        double k_1 = ((RetrievalModelBM25) r).getK_1();
+        double avg_doclen = this.stats.avgFieldLength;
+        return this.idf * maxTf / (maxTf + k_1 * (1 - b + b * (minDoclen / avg_doclen)));
+    }
+
     //  featureBM25 (queryStems, docid, field):
     //    score = 0
     //    for each stem in <docid, field>
@@ -128,7 +243,7 @@ public class QrySopScore extends QrySop {
     //  return score
     public double featureBM25(double b,double k_1,double k_3,String field,int docId,String[] qTerms) throws IOException {
         double score = 0.0;
-        TermVector termVector = new TermVector(docId, field);
+        TermVector termVector = TermVector.get(docId, field);
         if (termVector.positionsLength()==0 || termVector.stemsLength()==0) return Double.MIN_VALUE;
         long N = Idx.getNumDocs();
         double doclen = Idx.getFieldLength(field, docId);
@@ -158,11 +273,9 @@ public class QrySopScore extends QrySop {
             double lambda = ((RetrievalModelIndri) r).getLambda();
             double mu = ((RetrievalModelIndri) r).getMu();
             Qry q = this.args.get(0);
-            double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-            double ctf = ((QryIop) q).getCtf();
+            double tf = ((QryIop) q).docIteratorGetMatchTf();
             double doclen = Idx.getFieldLength(((QryIop) q).getField(), ((QryIop) q).docIteratorGetMatch());
-            double collen = Idx.getSumOfFieldLengths(((QryIop) q).getField());
-            return (1 - lambda) * (tf + mu * (ctf / collen)) / (doclen + mu) + lambda * ctf / collen;
+            return (1 - lambda) * (tf + this.indriMuPmle) / (doclen + mu) + this.indriLambdaPmle;
         }
     }
 
@@ -180,7 +293,7 @@ public class QrySopScore extends QrySop {
     //  return score
     public double featureIndri(double lambda,double mu,String field,int docId,String[] qTerms) throws IOException {
         double score = 1.0;
-        TermVector termVector = new TermVector(docId, field);
+        TermVector termVector = TermVector.get(docId, field);
         if (termVector.positionsLength()==0 || termVector.stemsLength()==0) return Double.MIN_VALUE;
         double doclen = Idx.getFieldLength(field, docId);
         double collen = Idx.getSumOfFieldLengths(field);
@@ -197,7 +310,7 @@ public class QrySopScore extends QrySop {
 
 
     public double getOverlapScore(int docId, String field, String[] qTerms) throws IOException{
-        TermVector termVector = new TermVector(docId, field);
+        TermVector termVector = TermVector.get(docId, field);
         //Note: If you try to instantiate a TermVector for a document field that does not exist
         // (e.g., an inlink field for a document that has no inlinks), the constructor returns an empty TermVector.
         // It is easy to recognize an empty TermVector: The positionsLength and stemsLength methods will return 0 (i.e., the field does not contain anything).
@@ -213,7 +326,7 @@ public class QrySopScore extends QrySop {
 
     public double getAvgTf(int docId,String field,String[] qTerms) throws IOException{
         double sum = 0.0;
-        TermVector termVector = new TermVector(docId, field);
+        TermVector termVector = TermVector.get(docId, field);
         if (termVector.positionsLength()==0 || termVector.stemsLength()==0) return Double.MIN_VALUE;
 
         for(String stem:qTerms){
@@ -228,7 +341,7 @@ public class QrySopScore extends QrySop {
 
     public double getAvgTfidf(int docId,String field,String[] qTerms) throws IOException{
         double sum = 0.0;
-        TermVector termVector = new TermVector(docId, field);
+        TermVector termVector = TermVector.get(docId, field);
         if (termVector.positionsLength()==0 || termVector.stemsLength()==0) return Double.MIN_VALUE;
         long N = Idx.getNumDocs();
 
@@ -259,6 +372,33 @@ public class QrySopScore extends QrySop {
 
         Qry q = this.args.get(0);
         q.initialize(r);
+
+        //  Precompute the parts of the score that are the same for
+        //  every document, so that the per-document work is just the
+        //  tf and document length terms.  Only BM25 and Indri use the
+        //  collection statistics, so the Boolean models don't need an
+        //  open index.
+
+        String field = ((QryIop) q).getField();
+
+        if (r instanceof RetrievalModelBM25) {
+            this.stats = Idx.getCollectionStats(field);
+            long N = this.stats.numDocs;
+            int df = ((QryIop) q).getDf();
+            this.idf = Math.max(0, Math.log(1.0 * (N - df + 0.5) / (df + 0.5)));
+        } else if (r instanceof RetrievalModelIndri) {
+            this.stats = Idx.getCollectionStats(field);
+            double lambda = ((RetrievalModelIndri) r).getLambda();
+            double mu = ((RetrievalModelIndri) r).getMu();
+            double collen = this.stats.sumOfFieldLengths;
+            double ctf = ((QryIop) q).getCtf();
+            this.indriMuPmle = mu * (ctf / collen);
+            this.indriLambdaPmle = lambda * ctf / collen;
+
+            ctf = (ctf == 0) ? 0.5 : ctf;
+            this.indriDefaultNumerator = (1 - lambda) * mu * (ctf / collen);
+            this.indriDefaultLambdaPmle = lambda * ctf / collen;
+        }
     }
 
 }
@@ -2,9 +2,208 @@ import java.io.IOException;
 
 public class QrySopSum extends QrySop {
 
+    /**
+     *  A little slack for the WAND upper bounds, because they are not
+     *  added in the same order as the scores are.
+     */
+    private static final double MAX_SCORE_SLACK = 1e-9;
+
+    //  WAND state:  the score upper bound of each argument, and the
+    //  indexes of the arguments that still have matches, sorted by
+    //  their current docids.
+
+    private double[] maxScores = null;
+    private int[] wandOrder = null;
+
     @Override
     public boolean docIteratorHasMatch(RetrievalModel r) {
-        return this.docIteratorHasMatchMin (r);
+        if ((this.topK != null) &&
+                !QrySop.getPruning().equals("none") &&
+                (r instanceof RetrievalModelBM25)) {
+            return this.docIteratorHasMatchWand (r, QrySop.getPruning().equals("bmw"));
+        } else {
+            return this.docIteratorHasMatchMin (r);
+        }
+    }
+
+    /**
+     *  An instantiation of docIteratorHasMatch that uses WAND dynamic
+     *  pruning:  it skips documents whose score can't reach the
+     *  lowest score in the top k results.  The arguments are sorted
+     *  by their current docids, and their score upper bounds are added
+     *  until the sum reaches the threshold.  No document before the
+     *  docid of that (pivot) argument can reach the threshold, so the
+     *  earlier arguments advance to the pivot.  A document with a
+     *  score equal to the threshold may still enter the results, so
+     *  it is not skipped.
+     *  <p>
+     *  Block-max WAND also checks the pivot document against the
+     *  upper bounds of the blocks of postings that contain it.  If
+     *  they can't reach the threshold, no document can until one of
+     *  those blocks ends or another argument matches, so the
+     *  arguments skip to that docid.
+     *  </p>
+     *  @param r The retrieval model that determines what is a match
+     *  @param blockMax True for block-max WAND.
+     *  @return True if the query matches, otherwise false.
+     */
+    private boolean docIteratorHasMatchWand(RetrievalModel r, boolean blockMax) {
+
+        double threshold = this.topK.threshold();
+
+        if (threshold == Double.NEGATIVE_INFINITY) {
+            return this.docIteratorHasMatchMin (r);
+        }
+
+        if (this.maxScores == null) {
+            this.initializeMaxScores (r);
+        }
+
+        while (true) {
+
+            //  Sort the arguments that have matches by docid.
+
+            int n = 0;
+
+            for (int i = 0; i < this.args.size(); i++) {
+                Qry q_i = this.args.get(i);
+
+                if (q_i.docIteratorHasMatch(r)) {
+                    int docid = q_i.docIteratorGetMatch();
+                    int j = n++;
+
+                    while ((j > 0) &&
+                           (this.args.get(this.wandOrder[j-1]).docIteratorGetMatch() > docid)) {
+                        this.wandOrder[j] = this.wandOrder[j-1];
+                        j--;
+                    }
+
+                    this.wandOrder[j] = i;
+                }
+            }
+
+            //  Find the pivot.
+
+            double bound = 0;
+            int pivot = -1;
+
+            for (int j = 0; j < n; j++) {
+                bound += this.maxScores[this.wandOrder[j]];
+
+                if (bound + MAX_SCORE_SLACK * Math.abs(bound) >= threshold) {
+                    pivot = j;
+                    break;
+                }
+            }
+
+            if (pivot < 0) {
+                return false;           // No document can reach the threshold
+            }
+
+            int pivotDocid = this.args.get(this.wandOrder[pivot]).docIteratorGetMatch();
+
+            if (blockMax) {
+
+                //  Arguments after the pivot that are also at the pivot
+                //  docid contribute to its score.
+
+                while ((pivot + 1 < n) &&
+                       (this.args.get(this.wandOrder[pivot+1]).docIteratorGetMatch() == pivotDocid)) {
+                    pivot++;
+                }
+
+                int nextDocid = (pivot + 1 < n) ?
+                    this.args.get(this.wandOrder[pivot+1]).docIteratorGetMatch() : Integer.MAX_VALUE;
+                double blockBound = this.getBlockMaxScores (r, pivot, pivotDocid);
+
+                if (blockBound + MAX_SCORE_SLACK * Math.abs(blockBound) < threshold) {
+                    for (int j = 0; j <= pivot; j++) {
+                        QrySop q_j = (QrySop) this.args.get(this.wandOrder[j]);
+                        int lastDocid = q_j.getBlockLastDocid (pivotDocid);
+
+                        if (lastDocid < nextDocid - 1) {
+                            nextDocid = lastDocid + 1;
+                        }
+                    }
+
+                    for (int j = 0; j <= pivot; j++) {
+                        this.args.get(this.wandOrder[j]).docIteratorAdvanceTo (nextDocid);
+                    }
+
+                    continue;
+                }
+            }
+
+            if (this.args.get(this.wandOrder[0]).docIteratorGetMatch() == pivotDocid) {
+                this.docIteratorSetMatchCache (pivotDocid);
+                return true;
+            }
+
+            for (int j = 0; j < pivot; j++) {
+                this.args.get(this.wandOrder[j]).docIteratorAdvanceTo (pivotDocid);
+            }
+        }
+    }
+
+    /**
+     *  Add the block score upper bounds of the first arguments in
+     *  wandOrder at a docid, in the form that getScoreBM25 adds them.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param last The position in wandOrder of the last argument.
+     *  @param docid The docid.
+     *  @return The sum of the block upper bounds.
+     */
+    private double getBlockMaxScores(RetrievalModel r, int last, int docid) {
+
+        double k_3 = ((RetrievalModelBM25)r).getK_3();
+        double bound = 0;
+
+        try {
+            for (int j = 0; j <= last; j++) {
+                QrySop q_j = (QrySop) this.args.get(this.wandOrder[j]);
+                bound += q_j.getBlockMaxScore(r, docid)*(k_3 + 1) * 1 / (k_3 + 1);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException ("Error reading document lengths for " + this, ex);
+        }
+
+        return bound;
+    }
+
+    /**
+     *  Get the score upper bound of each argument, in the form that
+     *  getScoreBM25 adds it to the document score.
+     *  @param r The retrieval model that determines how scores are calculated.
+     */
+    private void initializeMaxScores(RetrievalModel r) {
+
+        double k_3 = ((RetrievalModelBM25)r).getK_3();
+
+        this.maxScores = new double[this.args.size()];
+        this.wandOrder = new int[this.args.size()];
+
+        try {
+            for (int i = 0; i < this.args.size(); i++) {
+                double maxScore = ((QrySop) this.args.get(i)).getMaxScore(r);
+                this.maxScores[i] = maxScore*(k_3 + 1) * 1 / (k_3 + 1);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException ("Error reading document lengths for " + this, ex);
+        }
+    }
+
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelBM25) {
+            double sum = 0;
+            double k_3 = ((RetrievalModelBM25)r).getK_3();
+            for (Qry q_i : this.args){
+                sum += ((QrySop) q_i).getMaxScore(r)*(k_3 + 1) * 1 / (k_3 + 1);
+            }
+            return sum;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
     }
 
     @Override
@@ -22,6 +221,16 @@ public class QrySopSum extends QrySop {
         return 0;
     }
 
+    @Override
+    public QryScorer getScorer(RetrievalModel r) {
+        if (r instanceof RetrievalModelBM25) {
+            QryScorer[] scorers = QryScorer.compileArgs(this, r);
+            return (scorers == null) ? null : new QryScorer.BM25Sum(this, scorers, (RetrievalModelBM25) r);
+        } else {
+            return null;
+        }
+    }
+
     private double getScoreBM25 (RetrievalModel r) throws IOException {
         if (! this.docIteratorHasMatchCache()) {
             return 0.0;
@@ -5,6 +5,11 @@ public class QrySopWand extends QrySop {
     List<Double> weights;
     Double sum;
 
+    //  The exponent of each argument's score:  its weight, rounded to
+    //  four places, divided by the sum of the weights.
+
+    private double[] exponents;
+
     public void setWeights(List<Double> weights) {
         this.weights = weights;
         sum = 0.0;
@@ -16,9 +21,32 @@ public class QrySopWand extends QrySop {
 
     @Override
     public boolean docIteratorHasMatch(RetrievalModel r) {
+        if ((r instanceof RetrievalModelIndri) &&
+                QrySop.getPruning().equals("maxscore")) {
+            return this.docIteratorHasMatchMaxScore(r, this.getExponents());
+        }
         return this.docIteratorHasMatchMin(r);
     }
 
+    /**
+     *  The exponent of each argument's score, as getScoreIndri
+     *  computes it.
+     */
+    private double[] getExponents() {
+        return this.exponents;
+    }
+
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.exponents = new double[this.args.size()];
+        for (int i = 0; i < this.args.size(); i++) {
+            double weight = weights.get(i);
+            weight = (double) Math.round(weight * 10000) / 10000;
+            this.exponents[i] = weight / sum;
+        }
+    }
+
     @Override
     public double getScore(RetrievalModel r) throws IOException {
         if (r instanceof RetrievalModelIndri) {
@@ -31,35 +59,93 @@ public class QrySopWand extends QrySop {
 
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-        double product = 1.0;
+        return Math.exp(this.getLogDefaultScore(r, docid));
+    }
+
+    @Override
+    public QryScorer getScorer(RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            QryScorer[] scorers = QryScorer.compileArgs(this, r);
+            return (scorers == null) ? null :
+                    new QryScorer.IndriWeightedAnd(this, scorers, this.exponents, (RetrievalModelIndri) r);
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public double getLogScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            return this.getLogScoreWeighted(r, this.exponents);
+        } else {
+            return super.getLogScore(r);
+        }
+    }
+
+    @Override
+    public double getLogDefaultScore(RetrievalModel r, long docid) throws IOException {
+        return this.getLogDefaultScoreWeighted(r, docid, this.exponents);
+    }
+
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            double[] exponents = this.getExponents();
+            double product = 1.0;
             for (int i = 0; i < this.args.size(); i++) {
-                double weight = weights.get(i);
-                weight = (double) Math.round(weight * 10000) / 10000;
-                product *= Math.pow(((QrySop) this.args.get(i)).getDefaultScore(r, docid), weight / sum);
+                QrySop q_i = (QrySop) this.args.get(i);
+                product *= Math.pow(Math.max(q_i.getMaxScore(r), q_i.getMaxDefaultScore(r)), exponents[i]);
             }
             return product;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
     }
 
-    private double getScoreIndri(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
-        } else {
-            //if(this.docIteratorGetMatch()==514167) System.out.println("aaaaaaa");
+    @Override
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            double[] exponents = this.getExponents();
             double product = 1.0;
             for (int i = 0; i < this.args.size(); i++) {
-                double weight = weights.get(i);
-                weight = (double) Math.round(weight * 10000) / 10000;
-                if (this.args.get(i).docIteratorHasMatch(r)
-                        && this.args.get(i).docIteratorGetMatch() == this.docIteratorGetMatch()) {
-                    product *= Math.pow(((QrySop) this.args.get(i)).getScore(r), weight / sum);
-                } else {
-                    product *= Math.pow(((QrySop) this.args.get(i)).getDefaultScore(r, this.docIteratorGetMatch()), weight / sum);
-                }
+                product *= Math.pow(((QrySop) this.args.get(i)).getMaxDefaultScore(r), exponents[i]);
             }
-
             return product;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     *  getScore for the Indri retrieval model.  The weighted geometric
+     *  mean is computed in log space; nested operators use getLogScore,
+     *  so only the root of the query is exponentiated.
+     */
+    private double getScoreIndri(RetrievalModel r) throws IOException {
+        if (!this.docIteratorHasMatchCache()) {
+            return 0.0;
+        } else {
+            return Math.exp(this.getLogScoreWeighted(r, this.exponents));
         }
     }
 
+    /**
+     *  Get a string version of the query arguments, including the
+     *  weights, so that queries that differ only in their weights
+     *  have different strings.
+     *  @param canonical True to use the arguments' canonical strings.
+     *  @return The string version of the query arguments.
+     */
+    @Override
+    protected String argsToString(boolean canonical) {
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
+            result.append(this.weights.get(i)).append(" ")
+                    .append(canonical ? q_i.toCanonicalString() : q_i.toString()).append(" ");
+        }
 
+        return result.toString();
+    }
 }
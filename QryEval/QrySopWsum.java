@@ -54,4 +54,23 @@ public class QrySopWsum extends QrySop  {
         }
     }
 
+    /**
+     *  Get a string version of the query arguments, including the
+     *  weights, so that queries that differ only in their weights
+     *  have different strings.
+     *  @param canonical True to use the arguments' canonical strings.
+     *  @return The string version of the query arguments.
+     */
+    @Override
+    protected String argsToString(boolean canonical) {
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
+            result.append(this.weights.get(i)).append(" ")
+                    .append(canonical ? q_i.toCanonicalString() : q_i.toString()).append(" ");
+        }
+
+        return result.toString();
+    }
 }
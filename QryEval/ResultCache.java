@@ -0,0 +1,127 @@
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  A process-wide cache of query results.  A result is keyed by the
+ *  query after it is parsed and optimized (so queries that differ
+ *  only in whitespace, the case of operator names, or redundant
+ *  operators share an entry), the retrieval model and its parameters,
+ *  the number of results, and the index.  Every caller of QryEval.processQuery uses the cache,
+ *  including the relevance feedback and diversification pipelines,
+ *  which often evaluate the same original and intent queries again.
+ *  <p>
+ *  The cache is bounded by the estimated size of the cached score
+ *  lists, evicts the least recently used results first, and can
+ *  expire results a fixed time after they are added.  Score lists are
+ *  copied into and out of the cache, because callers sort and
+ *  truncate the lists that they get.
+ *  </p>
+ */
+public class ResultCache {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static LruCache<Key, ScoreList> cache = null;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Cache query results (size greater than 0), or don't (size 0, the
+     *  default).  Results that were already cached are discarded.
+     *  @param bytes The largest estimated size of the cached results.
+     *  @param ttlSeconds How long a result lasts after it is added, in
+     *  seconds, or 0 if results don't expire.
+     */
+    public static synchronized void setCacheSize(long bytes, long ttlSeconds) {
+        cache = (bytes > 0) ?
+                new LruCache<>("Result cache", bytes, ScoreList::sizeInBytes, ttlSeconds * 1000) :
+                null;
+    }
+
+    /**
+     *  Get the cache, e.g., to report its statistics.
+     *  @return The cache, or null if results aren't cached.
+     */
+    public static LruCache<Key, ScoreList> getCache() {
+        return cache;
+    }
+
+    /**
+     *  Get the cached results of a query.
+     *  @param q A parsed and optimized query.
+     *  @param model The retrieval model.
+     *  @param k The number of results.
+     *  @return A copy of the cached results, or null if they aren't cached.
+     */
+    public static ScoreList get(Qry q, RetrievalModel model, int k) {
+        LruCache<Key, ScoreList> c = cache;
+
+        if (c == null) {
+            return null;
+        }
+
+        ScoreList results = c.get(new Key(Idx.INDEXREADER, canonicalQuery(q, model, k)));
+        return (results == null) ? null : results.copy();
+    }
+
+    /**
+     *  Cache the results of a query.
+     *  @param q A parsed and optimized query.
+     *  @param model The retrieval model.
+     *  @param k The number of results.
+     *  @param results The results, which are copied.
+     */
+    public static void put(Qry q, RetrievalModel model, int k, ScoreList results) {
+        LruCache<Key, ScoreList> c = cache;
+
+        if (c != null) {
+            c.put(new Key(Idx.INDEXREADER, canonicalQuery(q, model, k)), results.copy());
+        }
+    }
+
+    /**
+     *  The string part of a cache key.  Qry.toCanonicalString includes
+     *  operator names (in lower case), window sizes, weights, terms,
+     *  and fields.  A postings budget makes impact index results
+     *  approximate, so it is part of the key too.
+     */
+    private static String canonicalQuery(Qry q, RetrievalModel model, int k) {
+        String key = q.toCanonicalString() + " " + model + " k=" + k;
+
+        if (ImpactIndex.isEnabled()) {
+            key += " impactPostingsBudget=" + ImpactIndex.getPostingsBudget();
+        }
+
+        return key;
+    }
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  A cache key.  Index readers are compared by identity, because Idx
+     *  opens each index once.
+     */
+    static class Key {
+        private final IndexReader reader;
+        private final String query;
+
+        Key(IndexReader reader, String query) {
+            this.reader = reader;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) o;
+            return (this.reader == k.reader) && this.query.equals(k.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.reader) * 31 + this.query.hashCode();
+        }
+    }
+}
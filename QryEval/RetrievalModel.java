@@ -16,4 +16,14 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get a string that identifies the retrieval model and its
+   *  parameters, e.g., to key cached results.
+   *  @return The string.
+   */
+  @Override
+  public String toString () {
+    return this.getClass().getSimpleName ();
+  }
+
 }
@@ -25,4 +25,9 @@ public class RetrievalModelBM25 extends RetrievalModel {
     public String defaultQrySopName() {
         return new String ("#sum");
     }
+
+    @Override
+    public String toString() {
+        return "BM25(k_1=" + k_1 + ", b=" + b + ", k_3=" + k_3 + ")";
+    }
 }
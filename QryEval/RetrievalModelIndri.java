@@ -19,4 +19,9 @@ public class RetrievalModelIndri extends RetrievalModel {
     public String defaultQrySopName() {
         return new String ("#and");
     }
+
+    @Override
+    public String toString() {
+        return "Indri(mu=" + mu + ", lambda=" + lambda + ")";
+    }
 }
@@ -33,4 +33,9 @@ public class RetrievalModelLetor extends RetrievalModel {
     public String defaultQrySopName() {
         return null;
     }
+
+    @Override
+    public String toString() {
+        return "Letor(k_1=" + k_1 + ", b=" + b + ", k_3=" + k_3 + ", mu=" + mu + ", lambda=" + lambda + ")";
+    }
 }
@@ -8,33 +8,40 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Entries are stored in parallel primitive arrays.  Ties in score are
+ *  broken by external document id, but external ids are expensive to
+ *  read, so they are only fetched for documents that share a score
+ *  with another document and are actually looked at: sort orders
+ *  documents by score, and each group of tied documents is ordered by
+ *  external id the first time that something inside the group (or
+ *  before it) is accessed, or when truncate cuts through the group.
+ *  </p>
  */
 public class ScoreList {
 
-    //  A utility class to create a <internalDocid, externalDocid, score>
-    //  object.
+    //  --------------- Constants and variables ---------------------
 
-    private class ScoreListEntry {
-        private int docid;
-        private String externalId;
-        private double score;
+    private static final int INITIAL_CAPACITY = 16;
 
-        private ScoreListEntry(int internalDocid, double score) {
-            this.docid = internalDocid;
-            this.score = score;
+    private int[] docids = new int[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
 
-            try {
-                this.externalId = Idx.getExternalDocid(this.docid);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-    }
+    /**
+     *  External ids that have been fetched so far, or null.
+     */
+    private String[] externalIds = new String[INITIAL_CAPACITY];
+
+    private int size = 0;
 
     /**
-     *  A list of document ids and scores.
+     *  After sort, entries before orderedLength are in their final
+     *  order.  Groups of tied entries after it may still need to be
+     *  ordered by external id.
      */
-    private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+    private int orderedLength = 0;
+
+    //  --------------- Methods ---------------------------------------
 
     /**
      *  Append a document score to a score list.
@@ -42,7 +49,32 @@ public class ScoreList {
      *  @param score The document's score.
      */
     public void add(int docid, double score) {
-        scores.add(new ScoreListEntry(docid, score));
+        this.add(docid, null, score);
+    }
+
+    /**
+     *  Append a document score whose external id is already known to
+     *  a score list.
+     *  @param docid An internal document id.
+     *  @param externalId The document's external id, or null.
+     *  @param score The document's score.
+     */
+    public void add(int docid, String externalId, double score) {
+
+        this.resolveTies(this.size - 1);
+
+        if (this.size == this.docids.length) {
+            int capacity = 2 * this.size;
+            this.docids = Arrays.copyOf(this.docids, capacity);
+            this.scores = Arrays.copyOf(this.scores, capacity);
+            this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+        }
+
+        this.docids[this.size] = docid;
+        this.scores[this.size] = score;
+        this.externalIds[this.size] = externalId;
+        this.size++;
+        this.orderedLength = this.size;
     }
 
     /**
@@ -51,7 +83,22 @@ public class ScoreList {
      *  @return The internal document id.
      */
     public int getDocid(int n) {
-        return this.scores.get(n).docid;
+        this.checkIndex(n);
+        this.resolveTies(n);
+        return this.docids[n];
+    }
+
+    /**
+     *  Get the external docid of the n'th entry.  It is read from the
+     *  index the first time that it is needed.
+     *  @param n The index of the requested document.
+     *  @return The external document id.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public String getExternalDocid(int n) throws IOException {
+        this.checkIndex(n);
+        this.resolveTies(n);
+        return this.externalId(n);
     }
 
     /**
@@ -60,7 +107,9 @@ public class ScoreList {
      *  @return The document's score.
      */
     public double getDocidScore(int n) {
-        return this.scores.get(n).score;
+        this.checkIndex(n);
+        this.resolveTies(n);
+        return this.scores[n];
     }
 
     /**
@@ -69,7 +118,20 @@ public class ScoreList {
      *  @param score The new score.
      */
     public void setDocidScore(int n, double score) {
-        this.scores.get(n).score = score;
+        this.checkIndex(n);
+        this.resolveTies(this.size - 1);
+        this.scores[n] = score;
+    }
+
+    /**
+     *  Throw an IndexOutOfBoundsException if n isn't an entry, as the
+     *  ArrayList that used to hold the entries did.  The arrays are
+     *  longer than the list, so they don't check.
+     */
+    private void checkIndex(int n) {
+        if ((n < 0) || (n >= this.size)) {
+            throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
+        }
     }
 
     /**
@@ -77,41 +139,226 @@ public class ScoreList {
      *  @return The size of the posting list.
      */
     public int size() {
-        return this.scores.size();
+        return this.size;
     }
 
-    /*
-     *  Compare two ScoreListEntry objects.  Sort by score, then
-     *  internal docid.
+    /**
+     *  Make an independent copy of the score list, e.g., so that a
+     *  cached list isn't changed by callers that sort or truncate it.
+     *  @return The copy.
+     */
+    public ScoreList copy() {
+        ScoreList copy = new ScoreList();
+        int capacity = Math.max(INITIAL_CAPACITY, this.size);
+        copy.docids = Arrays.copyOf(this.docids, capacity);
+        copy.scores = Arrays.copyOf(this.scores, capacity);
+        copy.externalIds = Arrays.copyOf(this.externalIds, capacity);
+        copy.size = this.size;
+        copy.orderedLength = this.orderedLength;
+        return copy;
+    }
+
+    /**
+     *  Estimate the memory that the score list uses, e.g., to weigh it
+     *  in a cache.  External ids that have been fetched are included.
+     *  @return The size in bytes.
      */
-    public class ScoreListComparator implements Comparator<ScoreListEntry> {
+    public long sizeInBytes() {
+        long size = 64 + 3 * 16 + 4L * this.docids.length + 8L * this.scores.length +
+                4L * this.externalIds.length;
 
-        @Override
-        public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-            if (s1.score > s2.score)
-                return -1;
-            else if (s1.score < s2.score)
-                return 1;
-            else return s1.externalId.compareTo(s2.externalId);
+        for (int i = 0; i < this.size; i++) {
+            if (this.externalIds[i] != null) {
+                size += 40 + 2L * this.externalIds[i].length();
+            }
         }
+
+        return size;
     }
 
     /**
      *  Sort the list by score and external document id.
      */
     public void sort() {
-        Collections.sort(this.scores, new ScoreListComparator());
+
+        if (this.size < 2) {
+            return;
+        }
+
+        //  Sort a permutation by score (descending), then apply it.
+
+        int[] order = new int[this.size];
+        int[] buffer = new int[this.size];
+
+        for (int i = 0; i < this.size; i++) {
+            order[i] = i;
+        }
+
+        this.mergeSort(order, buffer, 0, this.size);
+
+        int[] sortedDocids = new int[this.docids.length];
+        double[] sortedScores = new double[this.scores.length];
+        String[] sortedExternalIds = new String[this.externalIds.length];
+
+        for (int i = 0; i < this.size; i++) {
+            sortedDocids[i] = this.docids[order[i]];
+            sortedScores[i] = this.scores[order[i]];
+            sortedExternalIds[i] = this.externalIds[order[i]];
+        }
+
+        this.docids = sortedDocids;
+        this.scores = sortedScores;
+        this.externalIds = sortedExternalIds;
+        this.orderedLength = 0;
+    }
+
+    /**
+     *  Sort order[from..to) by descending score.  The sort is stable.
+     */
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+
+        if (to - from < 2) {
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        this.mergeSort(order, buffer, from, mid);
+        this.mergeSort(order, buffer, mid, to);
+
+        if (this.scores[order[mid - 1]] >= this.scores[order[mid]]) {
+            return;                     // Already in order
+        }
+
+        System.arraycopy(order, from, buffer, from, to - from);
+
+        int i = from;
+        int j = mid;
+
+        for (int k = from; k < to; k++) {
+            if ((j >= to) ||
+                ((i < mid) && !(this.scores[buffer[j]] > this.scores[buffer[i]]))) {
+                order[k] = buffer[i++];
+            } else {
+                order[k] = buffer[j++];
+            }
+        }
+    }
+
+    /**
+     *  Make sure that entries 0..n are in their final order by
+     *  ordering each group of tied scores by external id.
+     *  @param n The index of an entry.
+     */
+    private void resolveTies(int n) {
+
+        while ((this.orderedLength <= n) && (this.orderedLength < this.size)) {
+            this.orderedLength = this.orderTieGroup(this.orderedLength);
+        }
+    }
+
+    /**
+     *  Order the group of tied entries that starts at from by external
+     *  id.  Groups with one entry are already in order.
+     *  @param from The index of the first entry in the group.
+     *  @return The index of the first entry after the group.
+     */
+    private int orderTieGroup(int from) {
+
+        int to = from + 1;
+
+        while ((to < this.size) && this.tied(from, to)) {
+            to++;
+        }
+
+        if (to - from < 2) {
+            return to;
+        }
+
+        //  Tied entries have the same score, so only the docids and
+        //  external ids need to be reordered.
+
+        Integer[] order = new Integer[to - from];
+
+        for (int i = 0; i < order.length; i++) {
+            order[i] = from + i;
+            this.externalId(from + i);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return externalIds[i1].compareTo(externalIds[i2]);
+            }
+        });
+
+        int[] groupDocids = new int[order.length];
+        String[] groupExternalIds = new String[order.length];
+
+        for (int i = 0; i < order.length; i++) {
+            groupDocids[i] = this.docids[order[i]];
+            groupExternalIds[i] = this.externalIds[order[i]];
+        }
+
+        System.arraycopy(groupDocids, 0, this.docids, from, order.length);
+        System.arraycopy(groupExternalIds, 0, this.externalIds, from, order.length);
+        return to;
+    }
+
+    /**
+     *  Returns true if two entries have the same score.
+     */
+    private boolean tied(int i, int j) {
+        return !(this.scores[i] > this.scores[j]) && !(this.scores[i] < this.scores[j]);
+    }
+
+    /**
+     *  Get the external id of the n'th entry, reading it from the index
+     *  if it hasn't been read yet.
+     */
+    private String externalId(int n) {
+
+        if (this.externalIds[n] == null) {
+            try {
+                this.externalIds[n] = Idx.getExternalDocid(this.docids[n]);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        return this.externalIds[n];
     }
 
     /**
      * Reduce the score list to the first num results to save on RAM.
+     * Only the group of tied entries that straddles the cut needs to be
+     * ordered by external id first.
      *
      * @param num Number of results to keep.
      */
     public void truncate(int num) {
-        List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-                Math.min(num, scores.size())));
-        this.scores.clear();
-        this.scores = truncated;
+
+        if (num >= this.size) {
+            return;
+        }
+
+        if ((num > 0) && (num >= this.orderedLength)) {
+            int from = num - 1;
+
+            while ((from > this.orderedLength) && this.tied(from - 1, num - 1)) {
+                from--;
+            }
+
+            if (this.tied(num - 1, num)) {
+                this.orderTieGroup(from);
+            }
+        }
+
+        this.size = num;
+        this.orderedLength = Math.min(this.orderedLength, num);
+
+        int capacity = Math.max(num, INITIAL_CAPACITY);
+        this.docids = Arrays.copyOf(this.docids, capacity);
+        this.scores = Arrays.copyOf(this.scores, capacity);
+        this.externalIds = Arrays.copyOf(this.externalIds, capacity);
     }
 }
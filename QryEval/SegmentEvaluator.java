@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.LeafReaderContext;
+
+/**
+ *  Evaluates a single query in parallel by dividing the docid space
+ *  of the current index into shards, one per Lucene segment (large
+ *  segments are split into several docid ranges), and evaluating a
+ *  copy of the query tree for each shard on a ForkJoinPool.  Each
+ *  shard keeps its own top k documents, and they are merged at the
+ *  end.
+ *  <p>
+ *  The inverted lists of QryIop operators are produced once, before
+ *  the shards start, and shared by the copies of the query tree, so
+ *  df, ctf, and the collection statistics are the same as in
+ *  sequential evaluation, and so are the scores.  Streaming term
+ *  operators open their own postings in each shard.
+ *  </p>
+ */
+public class SegmentEvaluator {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static ForkJoinPool pool = null;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Set the number of threads that evaluate one query.  1 (the
+     *  default) disables segment-parallel evaluation.
+     *  @param numThreads The number of threads.
+     */
+    public static void setThreads(int numThreads) {
+
+        if (pool != null) {
+            pool.shutdown();
+        }
+
+        pool = (numThreads > 1) ? new ForkJoinPool(numThreads) : null;
+    }
+
+    /**
+     *  Returns true if queries should be evaluated in parallel.
+     *  @return True if segment-parallel evaluation is enabled.
+     */
+    public static boolean isEnabled() {
+        return (pool != null);
+    }
+
+    /**
+     *  Evaluate a query in parallel.
+     *  @param qString The query string that q was parsed from.
+     *  @param q The query, which has not been initialized.
+     *  @param model The retrieval model.
+     *  @param k The number of results to keep.
+     *  @return The top k documents.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static TopKCollector evaluate(String qString, Qry q, RetrievalModel model, int k)
+            throws IOException {
+
+        //  Initializing q produces the shared inverted lists.
+
+        q.initialize(model);
+
+        List<ForkJoinTask<TopKCollector>> shards = new ArrayList<>();
+
+        for (int[] range : docidRanges(pool.getParallelism())) {
+            Qry shard = QryParser.getQuery(qString);
+            shareInvertedLists(q, shard);
+
+            shards.add(pool.submit(() -> {
+                TopKCollector results = new TopKCollector(k);
+                shard.initialize(model);
+                QryEval.evaluate(shard, model, results, range[0], range[1]);
+                return results;
+            }));
+        }
+
+        TopKCollector results = new TopKCollector(k);
+
+        try {
+            for (ForkJoinTask<TopKCollector> shard : shards) {
+                results.collectAll(shard.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evaluating " + q, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException("Error evaluating " + q, ex.getCause());
+        }
+
+        return results;
+    }
+
+    /**
+     *  Give each QryIop in a copy of a query tree the inverted list of
+     *  the corresponding operator in the original.  The trees must
+     *  have the same structure, i.e., be parsed from the same string.
+     *  @param original An initialized query tree.
+     *  @param copy An uninitialized copy of the query tree.
+     */
+    private static void shareInvertedLists(Qry original, Qry copy) {
+
+        //  A streaming QryIopTerm has no inverted list, so its copy
+        //  opens its own postings when it is initialized.
+
+        if (original instanceof QryIop) {
+            ((QryIop) copy).setInvertedList(((QryIop) original).invertedList);
+            return;
+        }
+
+        for (int i = 0; i < original.args.size(); i++) {
+            shareInvertedLists(original.args.get(i), copy.args.get(i));
+        }
+    }
+
+    /**
+     *  Divide the docid space of the current index into ranges.
+     *  Segment boundaries are range boundaries, and no range is larger
+     *  than 1/numRanges of the index, so that one large segment doesn't
+     *  leave the other threads idle.
+     *  @param numRanges The desired number of ranges.
+     *  @return A list of [start, end) docid ranges.
+     */
+    private static List<int[]> docidRanges(int numRanges) {
+
+        List<int[]> ranges = new ArrayList<>();
+        int maxDoc = Idx.INDEXREADER.maxDoc();
+        int rangeSize = Math.max(1, (maxDoc + numRanges - 1) / numRanges);
+
+        for (LeafReaderContext leaf : Idx.INDEXREADER.leaves()) {
+            int end = leaf.docBase + leaf.reader().maxDoc();
+
+            for (int start = leaf.docBase; start < end; start += rangeSize) {
+                ranges.add(new int[]{start, Math.min(end, start + rangeSize)});
+            }
+        }
+
+        return ranges;
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates flat bag-of-words queries term-at-a-time:  BM25 #SUM and
+ *  Indri #AND queries whose arguments are all #SCORE operators over
+ *  materialized inverted lists.  Each inverted list is read once, from
+ *  beginning to end, by a loop over arrays that adds the term's
+ *  contribution to an accumulator for each document.  There are no
+ *  query operator iterators and no per-document virtual calls.
+ *  <p>
+ *  BM25 uses a dense accumulator that is indexed by docid when the
+ *  query's postings are a large enough fraction of the index, and
+ *  otherwise a sparse accumulator that is indexed by the position of
+ *  the docid in the sorted union of the query's docids.  Indri scores
+ *  every document in the union with every term (matching terms add
+ *  their scores, the others add default scores), so it always uses
+ *  the sparse accumulator.
+ *  </p>
+ *  <p>
+ *  Accumulators are doubles, and terms are added in query order, so
+ *  the scores are the same as document-at-a-time scores.  Other
+ *  queries, and queries with streaming postings, return null so that
+ *  the caller can evaluate them document-at-a-time.
+ *  </p>
+ */
+public class TermAtATimeEvaluator {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     *  BM25 uses a dense accumulator if the query has at least one
+     *  posting per DENSE_MIN_DENSITY documents in the index.
+     */
+    private static final int DENSE_MIN_DENSITY = 32;
+
+    private static volatile boolean enabled = false;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Evaluate flat queries term-at-a-time, or not (the default).
+     *  @param enable True to evaluate flat queries term-at-a-time.
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     *  Returns true if flat queries are evaluated term-at-a-time.
+     *  @return True if term-at-a-time evaluation is enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     *  Returns true if a query has a shape that evaluate supports:  a
+     *  BM25 #SUM or Indri #AND of #SCORE operators over materialized
+     *  inverted lists.  The query doesn't need to be initialized, so
+     *  callers can check before they initialize it.
+     *  @param q A query.
+     *  @param model The retrieval model.
+     *  @return True if the query can be evaluated term-at-a-time.
+     */
+    public static boolean isSupported(Qry q, RetrievalModel model) {
+
+        if ((q.args.size() == 0) ||
+            !(((model instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) ||
+              ((model instanceof RetrievalModelIndri) && (q instanceof QrySopAnd)))) {
+            return false;
+        }
+
+        for (Qry q_i : q.args) {
+            if (!(q_i instanceof QrySopScore) ||
+                ((q_i.args.get(0) instanceof QryIopTerm) && QryIopTerm.isStreamingEnabled())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     *  Evaluate an initialized query term-at-a-time, if it is a flat
+     *  query that this evaluator supports.
+     *  @param q An initialized query.
+     *  @param model The retrieval model.
+     *  @param k The number of results to keep.
+     *  @return The top k results, or null if the query isn't supported.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static TopKCollector evaluate(Qry q, RetrievalModel model, int k)
+            throws IOException {
+
+        if (q.args.size() == 0) {
+            return null;
+        }
+
+        if ((model instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) {
+            QryScorer.BM25Term[] terms = new QryScorer.BM25Term[q.args.size()];
+            InvList[] lists = new InvList[q.args.size()];
+
+            for (int i = 0; i < terms.length; i++) {
+                QryScorer scorer = getTermScorer(q.args.get(i), model);
+
+                if (!(scorer instanceof QryScorer.BM25Term)) {
+                    return null;
+                }
+
+                terms[i] = (QryScorer.BM25Term) scorer;
+                lists[i] = terms[i].getInvertedList();
+
+                if (lists[i] == null) {
+                    return null;
+                }
+            }
+
+            return evaluateBM25(terms, lists, ((RetrievalModelBM25) model).getK_3(), k);
+        }
+
+        if ((model instanceof RetrievalModelIndri) && (q instanceof QrySopAnd)) {
+            QryScorer.IndriTerm[] terms = new QryScorer.IndriTerm[q.args.size()];
+            InvList[] lists = new InvList[q.args.size()];
+
+            for (int i = 0; i < terms.length; i++) {
+                QryScorer scorer = getTermScorer(q.args.get(i), model);
+
+                if (!(scorer instanceof QryScorer.IndriTerm)) {
+                    return null;
+                }
+
+                terms[i] = (QryScorer.IndriTerm) scorer;
+                lists[i] = terms[i].getInvertedList();
+
+                if (lists[i] == null) {
+                    return null;
+                }
+            }
+
+            return evaluateIndri(terms, lists, k);
+        }
+
+        return null;
+    }
+
+    /**
+     *  Get the scorer of a #SCORE argument, or null if the argument is
+     *  something else.
+     */
+    private static QryScorer getTermScorer(Qry q, RetrievalModel model) {
+        return (q instanceof QrySopScore) ? ((QrySopScore) q).getScorer(model) : null;
+    }
+
+    /**
+     *  BM25 #SUM.  Each term adds score * (k_3 + 1) * 1 / (k_3 + 1) to
+     *  the documents that contain it, as QrySopSum does.
+     */
+    private static TopKCollector evaluateBM25(QryScorer.BM25Term[] terms, InvList[] lists,
+                                              double k_3, int k) throws IOException {
+
+        TopKCollector results = new TopKCollector(k);
+        long postings = 0;
+
+        for (InvList list : lists) {
+            postings += list.df;
+        }
+
+        int maxDoc = Idx.INDEXREADER.maxDoc();
+
+        if (postings * DENSE_MIN_DENSITY >= maxDoc) {
+
+            //  Dense:  accumulators are indexed by docid.
+
+            double[] acc = new double[maxDoc];
+            BitSet touched = new BitSet(maxDoc);
+
+            for (int i = 0; i < terms.length; i++) {
+                QryScorer.BM25Term term = terms[i];
+                InvList list = lists[i];
+                String field = term.getField();
+
+                for (int p = 0; p < list.df; p++) {
+                    int docid = list.getDocid(p);
+                    double doclen = Idx.getFieldLength(field, docid);
+                    acc[docid] += term.score(list.getTf(p), doclen) * (k_3 + 1) * 1 / (k_3 + 1);
+                    touched.set(docid);
+                }
+            }
+
+            for (int d = touched.nextSetBit(0); d >= 0; d = touched.nextSetBit(d + 1)) {
+                results.collect(d, acc[d]);
+            }
+        } else {
+
+            //  Sparse:  accumulators are indexed by position in the
+            //  union of the query's docids.
+
+            int[] docids = unionDocids(lists);
+            double[] acc = new double[docids.length];
+
+            for (int i = 0; i < terms.length; i++) {
+                QryScorer.BM25Term term = terms[i];
+                InvList list = lists[i];
+                String field = term.getField();
+                int j = 0;
+
+                for (int p = 0; p < list.df; p++) {
+                    int docid = list.getDocid(p);
+
+                    while (docids[j] < docid) {
+                        j++;
+                    }
+
+                    double doclen = Idx.getFieldLength(field, docid);
+                    acc[j] += term.score(list.getTf(p), doclen) * (k_3 + 1) * 1 / (k_3 + 1);
+                }
+            }
+
+            for (int j = 0; j < docids.length; j++) {
+                results.collect(docids[j], acc[j]);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     *  Indri #AND.  Every document that contains a query term gets
+     *  weight * log (score) from the terms that it contains and
+     *  weight * log (default score) from the others, in query order,
+     *  as QrySop.getLogScoreWeighted does.
+     */
+    private static TopKCollector evaluateIndri(QryScorer.IndriTerm[] terms, InvList[] lists,
+                                               int k) throws IOException {
+
+        TopKCollector results = new TopKCollector(k);
+        int[] docids = unionDocids(lists);
+        double[] acc = new double[docids.length];
+        double weight = 1.0 / terms.length;
+        Map<String, double[]> doclens = new HashMap<>();
+
+        for (int i = 0; i < terms.length; i++) {
+            QryScorer.IndriTerm term = terms[i];
+            InvList list = lists[i];
+            double[] lengths = doclens.get(term.getField());
+
+            if (lengths == null) {
+                lengths = new double[docids.length];
+
+                for (int j = 0; j < docids.length; j++) {
+                    lengths[j] = Idx.getFieldLength(term.getField(), docids[j]);
+                }
+
+                doclens.put(term.getField(), lengths);
+            }
+
+            int p = 0;
+
+            for (int j = 0; j < docids.length; j++) {
+                if ((p < list.df) && (list.getDocid(p) == docids[j])) {
+                    acc[j] += weight * Math.log(term.score(list.getTf(p), lengths[j]));
+                    p++;
+                } else {
+                    acc[j] += weight * Math.log(term.defaultScore(lengths[j]));
+                }
+            }
+        }
+
+        for (int j = 0; j < docids.length; j++) {
+            results.collect(docids[j], Math.exp(acc[j]));
+        }
+
+        return results;
+    }
+
+    /**
+     *  The sorted union of the docids in several inverted lists.
+     */
+    private static int[] unionDocids(InvList[] lists) {
+
+        int n = 0;
+
+        for (InvList list : lists) {
+            n += list.df;
+        }
+
+        int[] docids = new int[n];
+        n = 0;
+
+        for (InvList list : lists) {
+            for (int p = 0; p < list.df; p++) {
+                docids[n++] = list.getDocid(p);
+            }
+        }
+
+        Arrays.sort(docids);
+
+        //  Remove duplicates.
+
+        int m = 0;
+
+        for (int i = 0; i < n; i++) {
+            if ((m == 0) || (docids[i] != docids[m - 1])) {
+                docids[m++] = docids[i];
+            }
+        }
+
+        return Arrays.copyOf(docids, m);
+    }
+}
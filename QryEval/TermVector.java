@@ -3,7 +3,9 @@
  */
 
 import java.io.*;
+import java.util.*;
 
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
@@ -18,6 +20,13 @@ import org.apache.lucene.index.TermsEnum;
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *  </pre>
+ *  <p>
+ *  Decoding a Lucene termvector is expensive, and relevance feedback
+ *  and learning-to-rank features read the same few documents many
+ *  times.  Use TermVector.get, which can keep recently used term
+ *  vectors in a process-wide cache (see setCacheSize).  Cached term
+ *  vectors are shared, so they are only read.
+ *  </p>
  */
 public class TermVector {
 
@@ -39,8 +48,64 @@ public class TermVector {
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
   private Term[] terms;
 
+  //  The index of each stem, which indexOfStem builds the first time
+  //  that it is called.
+
+  private volatile Map<String, Integer> stemIndexes = null;
+
+  //  Term vectors, keyed by index, docid, and field, or null if they
+  //  aren't cached.
+
+  private static LruCache<Key, TermVector> cache = null;
+
   //  --------------- Methods ---------------------------------------
 
+  /**
+   *  Cache term vectors across calls to get, in a cache that evicts
+   *  the least recently used term vectors to stay within a memory
+   *  budget.
+   *  @param bytes The size of the cache, or 0 to disable it.
+   */
+  public static void setCacheSize (long bytes) {
+    TermVector.cache = (bytes > 0) ?
+      new LruCache<Key, TermVector> ("TermVector cache", bytes, TermVector::sizeInBytes) :
+      null;
+  }
+
+  /**
+   *  Get the term vector cache, e.g., to report its statistics.
+   *  @return The cache, or null if term vectors aren't cached.
+   */
+  public static LruCache<Key, TermVector> getCache () {
+    return TermVector.cache;
+  }
+
+  /**
+   *  Get the term vector of a document field, from the cache if it
+   *  is there.
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @return The term vector, which must not be modified.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static TermVector get (int docId, String fieldName) throws IOException {
+    LruCache<Key, TermVector> c = TermVector.cache;
+
+    if (c == null) {
+      return new TermVector (docId, fieldName);
+    }
+
+    Key key = new Key (Idx.INDEXREADER, docId, fieldName);
+    TermVector termVector = c.get (key);
+
+    if (termVector == null) {
+      termVector = new TermVector (docId, fieldName);
+      c.put (key, termVector);
+    }
+
+    return termVector;
+  }
+
   /**
    *  @param docId An internal document id
    *  @param fieldName The name of a document field.
@@ -119,12 +184,26 @@ public class TermVector {
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
-    
-    for (int i=1; i<this.stems.length; i++)
-      if (stem.equals (this.stems [i]))
-	return i;
-    
-    return -1;
+
+    if (this.fieldLength == 0)
+      return -1;
+
+    //  Build the map on the first call.  Term vectors may be shared
+    //  by several threads, which may each build an identical map.
+
+    Map<String, Integer> indexes = this.stemIndexes;
+
+    if (indexes == null) {
+      indexes = new HashMap<> (2 * this.stems.length);
+
+      for (int i=1; i<this.stems.length; i++)
+        indexes.putIfAbsent (this.stems [i], i);
+
+      this.stemIndexes = indexes;
+    }
+
+    Integer i = indexes.get (stem);
+    return (i == null) ? -1 : i;
   }
 
   /**
@@ -208,5 +287,66 @@ public class TermVector {
   public int stemDf(int i) throws IOException {
     return Idx.INDEXREADER.docFreq(terms[i]);
   }
+
+  /**
+   *  Estimate the memory that the term vector uses, including the
+   *  stem index, e.g., to weigh it in a cache.
+   *  @return The size in bytes.
+   */
+  public long sizeInBytes () {
+    long size = 96;
+
+    if (this.fieldLength == 0)
+      return size;
+
+    size += 4L * this.positions.length + 4L * this.stemsFreq.length;
+
+    for (int i=1; i<this.stems.length; i++) {
+
+      //  A stem is shared by stems and terms, plus a Term, its
+      //  BytesRef, and a map entry.
+
+      size += 40 + 2L * this.stems [i].length () + 72 + this.stems [i].length () + 48;
+    }
+
+    return size;
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The key of a cached term vector.  The index is compared by
+   *  identity, so term vectors from different indexes are never
+   *  confused.
+   */
+  static class Key {
+    private final IndexReader reader;
+    private final int docId;
+    private final String fieldName;
+
+    Key (IndexReader reader, int docId, String fieldName) {
+      this.reader = reader;
+      this.docId = docId;
+      this.fieldName = fieldName;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+      if (! (o instanceof Key)) {
+        return false;
+      }
+
+      Key k = (Key) o;
+      return (this.reader == k.reader) &&
+        (this.docId == k.docId) &&
+        this.fieldName.equals (k.fieldName);
+    }
+
+    @Override
+    public int hashCode () {
+      return (System.identityHashCode (this.reader) * 31 +
+              this.docId) * 31 + this.fieldName.hashCode ();
+    }
+  }
   
 }
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2020, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Collects the k best document scores seen so far, using the same
+ *  order as ScoreList.sort (score descending, then external document
+ *  id ascending).  The documents are kept in a min-heap of primitive
+ *  arrays whose root is the worst document that is kept, so memory is
+ *  O(k) and collecting n documents is O(n log k).
+ *  <p>
+ *  External ids are only needed to compare documents that have the
+ *  same score, so they are read from the index lazily, the first time
+ *  that a comparison needs them, and kept for the ScoreList.
+ *  </p>
+ */
+public class TopKCollector {
+
+    //  --------------- Constants and variables ---------------------
+
+    private final int k;
+
+    //  The heap.  Entry 0 is the worst document that is kept.
+
+    private int[] docids;
+    private double[] scores;
+    private String[] externalIds;
+    private int size = 0;
+
+    //  The document that is being offered to the heap, which is
+    //  compared to heap entries before it is inserted.
+
+    private int candidateDocid;
+    private double candidateScore;
+    private String candidateExternalId;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  @param k The maximum number of documents to keep.
+     */
+    public TopKCollector(int k) {
+
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative.");
+        }
+
+        this.k = k;
+
+        int capacity = Math.min(k, 1024);
+        this.docids = new int[capacity];
+        this.scores = new double[capacity];
+        this.externalIds = new String[capacity];
+    }
+
+    /**
+     *  Offer a document score to the collector.
+     *  @param docid An internal document id.
+     *  @param score The document's score.
+     */
+    public void collect(int docid, double score) {
+        this.collect(docid, null, score);
+    }
+
+    /**
+     *  Offer a document score whose external id may already be known
+     *  to the collector.
+     *  @param docid An internal document id.
+     *  @param externalId The document's external id, or null.
+     *  @param score The document's score.
+     */
+    public void collect(int docid, String externalId, double score) {
+
+        if (this.k == 0) {
+            return;
+        }
+
+        this.candidateDocid = docid;
+        this.candidateScore = score;
+        this.candidateExternalId = externalId;
+
+        if (this.size < this.k) {
+            if (this.size == this.docids.length) {
+                int capacity = Math.min(this.k, 2 * this.size);
+                this.docids = Arrays.copyOf(this.docids, capacity);
+                this.scores = Arrays.copyOf(this.scores, capacity);
+                this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+            }
+
+            this.siftUp(this.size++);
+        } else if (this.candidateIsBetter(0)) {
+            this.siftDown(0, this.size);
+        }
+    }
+
+    /**
+     *  Offer all of the documents kept by another collector to this
+     *  one, e.g., to merge the results of several shards.  External ids
+     *  that the other collector already read are reused.
+     *  @param other Another collector.
+     */
+    public void collectAll(TopKCollector other) {
+        for (int i = 0; i < other.size; i++) {
+            this.collect(other.docids[i], other.externalIds[i], other.scores[i]);
+        }
+    }
+
+    /**
+     *  Get the number of documents that are kept.
+     *  @return The number of documents.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     *  Get the lowest score that a new document needs to enter the
+     *  collector, or negative infinity if the collector isn't full yet.
+     *  A document with exactly this score may still enter if its
+     *  external id sorts first.
+     *  @return The score threshold.
+     */
+    public double threshold() {
+        return (this.size < this.k) ? Double.NEGATIVE_INFINITY : this.scores[0];
+    }
+
+    /**
+     *  Get the collected documents as a ScoreList, best first.  The
+     *  collector is empty afterwards.
+     *  @return The collected documents.
+     */
+    public ScoreList getScoreList() {
+
+        //  Remove the worst document repeatedly; the heap shrinks from
+        //  the end, and the removed documents fill it from the end.
+
+        for (int n = this.size - 1; n > 0; n--) {
+            int worstDocid = this.docids[0];
+            double worstScore = this.scores[0];
+            String worstExternalId = this.externalIds[0];
+
+            this.candidateDocid = this.docids[n];
+            this.candidateScore = this.scores[n];
+            this.candidateExternalId = this.externalIds[n];
+            this.siftDown(0, n);
+
+            this.docids[n] = worstDocid;
+            this.scores[n] = worstScore;
+            this.externalIds[n] = worstExternalId;
+        }
+
+        ScoreList results = new ScoreList();
+
+        for (int i = 0; i < this.size; i++) {
+            results.add(this.docids[i], this.externalIds[i], this.scores[i]);
+        }
+
+        this.size = 0;
+        return results;
+    }
+
+    /**
+     *  Insert the candidate at the bottom of the heap and move it up.
+     *  @param hole An empty slot at the end of the heap.
+     */
+    private void siftUp(int hole) {
+
+        while (hole > 0) {
+            int parent = (hole - 1) >>> 1;
+
+            if (!this.candidateIsBetter(parent)) {
+                this.move(hole, parent);
+                hole = parent;
+            } else {
+                break;
+            }
+        }
+
+        this.store(hole);
+    }
+
+    /**
+     *  Insert the candidate at the top of the heap (replacing the
+     *  entry that is there) and move it down.
+     *  @param hole The slot to fill, usually the root.
+     *  @param length The number of entries in the heap.
+     */
+    private void siftDown(int hole, int length) {
+
+        while (true) {
+            int child = 2 * hole + 1;
+
+            if (child >= length) {
+                break;
+            }
+
+            if ((child + 1 < length) && this.isBetter(child, child + 1)) {
+                child++;                        // The worse child
+            }
+
+            if (this.candidateIsBetter(child)) {
+                this.move(hole, child);
+                hole = child;
+            } else {
+                break;
+            }
+        }
+
+        this.store(hole);
+    }
+
+    /**
+     *  Returns true if the candidate ranks above heap entry i.
+     */
+    private boolean candidateIsBetter(int i) {
+
+        if (this.candidateScore > this.scores[i]) {
+            return true;
+        } else if (this.candidateScore < this.scores[i]) {
+            return false;
+        }
+
+        if (this.candidateExternalId == null) {
+            this.candidateExternalId = getExternalDocid(this.candidateDocid);
+        }
+
+        return this.candidateExternalId.compareTo(this.externalId(i)) < 0;
+    }
+
+    /**
+     *  Returns true if heap entry i ranks above heap entry j.
+     */
+    private boolean isBetter(int i, int j) {
+
+        if (this.scores[i] > this.scores[j]) {
+            return true;
+        } else if (this.scores[i] < this.scores[j]) {
+            return false;
+        }
+
+        return this.externalId(i).compareTo(this.externalId(j)) < 0;
+    }
+
+    /**
+     *  Get the external id of heap entry i, reading it if necessary.
+     */
+    private String externalId(int i) {
+
+        if (this.externalIds[i] == null) {
+            this.externalIds[i] = getExternalDocid(this.docids[i]);
+        }
+
+        return this.externalIds[i];
+    }
+
+    private static String getExternalDocid(int docid) {
+        try {
+            return Idx.getExternalDocid(docid);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error reading the external id of " + docid, ex);
+        }
+    }
+
+    private void move(int to, int from) {
+        this.docids[to] = this.docids[from];
+        this.scores[to] = this.scores[from];
+        this.externalIds[to] = this.externalIds[from];
+    }
+
+    private void store(int i) {
+        this.docids[i] = this.candidateDocid;
+        this.scores[i] = this.candidateScore;
+        this.externalIds[i] = this.candidateExternalId;
+    }
+}